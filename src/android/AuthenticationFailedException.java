@@ -0,0 +1,13 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+/**
+ * Encrypted data could not be decrypted with the given key: wrong master password, or data modified since it
+ * was encrypted.
+ */
+class AuthenticationFailedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    AuthenticationFailedException() {
+        super("Authentication failed");
+    }
+}
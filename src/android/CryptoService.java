@@ -0,0 +1,102 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * Crypto primitives used by the password databases.
+ *
+ * Looking up a crypto provider and seeding a SecureRandom are not free on Android, and databases encrypt and
+ * decrypt many small entries. Ciphers and key factories are not thread safe, so they are cached per thread and
+ * initialized again for each operation. A single SecureRandom, which is thread safe, is shared by everyone.
+ */
+class CryptoService {
+    static final String AES_GCM = "AES/GCM/NoPadding";
+    static final String AES_CBC = "AES/CBC/PKCS7Padding";
+    private static final String PBKDF2_HMAC_SHA1 = "PBKDF2WithHmacSHA1";
+
+    private static final AtomicInteger createdCiphersCount = new AtomicInteger();
+    private static final AtomicInteger createdSecretKeyFactoriesCount = new AtomicInteger();
+    private static final AtomicInteger createdSecureRandomsCount = new AtomicInteger();
+
+    private static final SecureRandom secureRandom = createSecureRandom();
+
+    private static final ThreadLocal<HashMap<String, Cipher>> threadCiphers = new ThreadLocal<HashMap<String, Cipher>>() {
+        @Override
+        protected HashMap<String, Cipher> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final ThreadLocal<SecretKeyFactory> threadSecretKeyFactory = new ThreadLocal<>();
+
+    private CryptoService() {
+    }
+
+    /**
+     * Cipher owned by the calling thread, to be initialized by the caller. The same instance is returned to the
+     * next caller on this thread, so it must only be used for operations completed right away (doFinal()).
+     */
+    static Cipher getCipher(String transformation) throws GeneralSecurityException {
+        HashMap<String, Cipher> ciphers = threadCiphers.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = newCipher(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * New cipher instance, for operations that last longer than a single call (cipher streams), during which
+     * the thread may need other ciphers.
+     */
+    static Cipher newCipher(String transformation) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(transformation);
+        createdCiphersCount.incrementAndGet();
+        return cipher;
+    }
+
+    static SecretKeyFactory getPbkdf2SecretKeyFactory() throws GeneralSecurityException {
+        SecretKeyFactory secretKeyFactory = threadSecretKeyFactory.get();
+        if (secretKeyFactory == null) {
+            secretKeyFactory = SecretKeyFactory.getInstance(PBKDF2_HMAC_SHA1);
+            createdSecretKeyFactoriesCount.incrementAndGet();
+            threadSecretKeyFactory.set(secretKeyFactory);
+        }
+        return secretKeyFactory;
+    }
+
+    /**
+     * Random bytes for keys, salts and IVs.
+     */
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        secureRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    static int getCreatedCiphersCount() {
+        return createdCiphersCount.get();
+    }
+
+    static int getCreatedSecretKeyFactoriesCount() {
+        return createdSecretKeyFactoriesCount.get();
+    }
+
+    static int getCreatedSecureRandomsCount() {
+        return createdSecureRandomsCount.get();
+    }
+
+    private static SecureRandom createSecureRandom() {
+        // Seeded by the system entropy source on first use
+        SecureRandom random = new SecureRandom();
+        createdSecureRandomsCount.incrementAndGet();
+        return random;
+    }
+}
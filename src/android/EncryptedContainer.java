@@ -0,0 +1,362 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+
+/**
+ * Encrypted data as saved in the password database files (database snapshot, data key, journal records).
+ *
+ * Binary format (big endian):
+ *
+ * magic "PWDB" (4 bytes) | version (1 byte) | KDF id (1 byte) | KDF iterations (4 bytes) |
+ * salt length (2 bytes) | salt | IV length (1 byte) | IV | encrypted data length (4 bytes) | encrypted data
+ *
+ * Version 1 data is encrypted with AES/CBC/PKCS7Padding. Version 2 data is encrypted with AES/GCM, and the
+ * header up to the IV (included) is authenticated with it.
+ *
+ * Older files are java-serialized HashMap<String, byte[]> objects with "salt", "iv" and "encrypted" entries.
+ * They can still be read, and are saved in the binary format next time they are written.
+ */
+class EncryptedContainer {
+    /** Data encrypted with the database data key, no key derivation. */
+    static final int KDF_NONE = 0;
+    /** Data encrypted with a key derived from the master password. */
+    static final int KDF_PBKDF2_HMAC_SHA1 = 1;
+
+    /** Iteration count used by most files written before it was saved in the file itself. */
+    static final int LEGACY_PBKDF2_ITERATIONS = 1324;
+    /** All iteration counts used by files written before it was saved in the file itself, lowest first. */
+    static final int[] LEGACY_PBKDF2_ITERATION_COUNTS = { LEGACY_PBKDF2_ITERATIONS, 327680 };
+
+    /** AES/CBC/PKCS7Padding, not authenticated. Also used by legacy files. */
+    static final int VERSION_CBC = 1;
+    /** AES/GCM with a 128 bits tag, header used as additional authenticated data. */
+    static final int VERSION_GCM = 2;
+
+    private static final byte[] MAGIC = { 'P', 'W', 'D', 'B' };
+    private static final int VERSION = VERSION_GCM;
+    // magic + version + kdf + iterations + salt length + iv length + encrypted length
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 2 + 1 + 4;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Produces the plain data of a container encrypted while it's being saved.
+     */
+    interface PlainDataWriter {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    int version = VERSION;
+    int kdf = KDF_NONE;
+    int iterations = 0;
+    byte[] salt = new byte[0];
+    byte[] iv;
+    byte[] encrypted;
+
+    /**
+     * Reads a container from a file, in a single pass. Files in the legacy serialized hashmap format are
+     * converted on the fly.
+     */
+    static EncryptedContainer read(File file) throws IOException {
+        ByteBuffer buffer = readFully(file);
+        if (!hasMagic(buffer)) {
+            return readLegacy(file);
+        }
+
+        return readFrom(buffer);
+    }
+
+    /**
+     * Reads all the containers saved one after the other in a file.
+     */
+    static ArrayList<EncryptedContainer> readAll(File file) throws IOException {
+        ArrayList<EncryptedContainer> containers = new ArrayList<>();
+        ByteBuffer buffer = readFully(file);
+        if (!hasMagic(buffer)) {
+            containers.add(readLegacy(file));
+            return containers;
+        }
+
+        while (buffer.hasRemaining()) {
+            containers.add(readFrom(buffer));
+        }
+        return containers;
+    }
+
+    static ByteBuffer readFully(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file.getName() + " is too large");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            buffer.flip();
+            return buffer;
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Reads one container starting at the buffer's current position. The buffer position is moved right after
+     * this container, so that consecutive containers (journal records) can be read.
+     */
+    static EncryptedContainer readFrom(ByteBuffer buffer) throws IOException {
+        try {
+            if (!hasMagic(buffer)) {
+                throw new IOException("Invalid encrypted container magic");
+            }
+            buffer.position(buffer.position() + MAGIC.length);
+
+            EncryptedContainer container = new EncryptedContainer();
+            container.version = buffer.get() & 0xFF;
+            if (container.version > VERSION) {
+                throw new IOException("Unsupported encrypted container version " + container.version);
+            }
+            container.kdf = buffer.get() & 0xFF;
+            container.iterations = buffer.getInt();
+            container.salt = readField(buffer, buffer.getShort() & 0xFFFF);
+            container.iv = readField(buffer, buffer.get() & 0xFF);
+            container.encrypted = readField(buffer, buffer.getInt());
+            return container;
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated encrypted container");
+        }
+    }
+
+    private static byte[] readField(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid encrypted container field length " + length);
+        }
+
+        byte[] field = new byte[length];
+        buffer.get(field);
+        return field;
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(buffer.position() + i) != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static EncryptedContainer readLegacy(File file) throws IOException {
+        long startTime = System.nanoTime();
+        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+        try {
+            HashMap<String, byte[]> map = (HashMap<String, byte[]>) ois.readObject();
+
+            EncryptedContainer container = new EncryptedContainer();
+            container.version = VERSION_CBC;
+            if (map.containsKey("salt")) {
+                container.kdf = KDF_PBKDF2_HMAC_SHA1;
+                // Unknown: one of LEGACY_PBKDF2_ITERATION_COUNTS
+                container.iterations = 0;
+                container.salt = map.get("salt");
+            }
+            container.iv = map.get("iv");
+            container.encrypted = map.get("encrypted");
+            if (container.iv == null || container.encrypted == null) {
+                throw new IOException("Invalid legacy encrypted file content");
+            }
+            return container;
+        }
+        catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid legacy encrypted file content");
+        }
+        finally {
+            ois.close();
+            PasswordMetrics.record(PasswordMetrics.Phase.LEGACY_READ, startTime);
+        }
+    }
+
+    ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(getHeaderSize() + encrypted.length);
+        putHeader(buffer, encrypted.length);
+        buffer.put(encrypted);
+        buffer.flip();
+        return buffer;
+    }
+
+    private int getHeaderSize() {
+        return HEADER_SIZE + salt.length + iv.length;
+    }
+
+    /**
+     * Header fields authenticated with the encrypted data: everything but the encrypted data length, which is
+     * only known once the data is encrypted.
+     */
+    byte[] getAuthenticatedHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(getHeaderSize() - 4);
+        putAuthenticatedHeader(buffer);
+        return buffer.array();
+    }
+
+    private void putHeader(ByteBuffer buffer, int encryptedLength) {
+        putAuthenticatedHeader(buffer);
+        buffer.putInt(encryptedLength);
+    }
+
+    private void putAuthenticatedHeader(ByteBuffer buffer) {
+        buffer.put(MAGIC);
+        buffer.put((byte) version);
+        buffer.put((byte) kdf);
+        buffer.putInt(iterations);
+        buffer.putShort((short) salt.length);
+        buffer.put(salt);
+        buffer.put((byte) iv.length);
+        buffer.put(iv);
+    }
+
+    /**
+     * Saves this container to a temporary file that then replaces the target file, so that an interrupted
+     * write never leaves a partially written file behind.
+     */
+    void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        writeToChannel(tmpFile, false, encode());
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Unable to save file " + file.getPath());
+        }
+    }
+
+    /**
+     * Saves this container with data encrypted while it's being written, so that the plain data is never built
+     * as a whole by the caller (no JSON string, no UTF-8 copy of it). This doesn't bound memory use: with AES/GCM,
+     * Conscrypt buffers the whole message until the final block, so the cipher still holds a full copy of the
+     * data for a moment. Only splitting the data into separately encrypted chunks would avoid that, at the cost
+     * of a new file format. The cipher must be initialized with this container's IV. As the encrypted data length is only known at the end, it's patched in the header afterwards. Like
+     * write(File), the target file is replaced only once completely written.
+     *
+     * The following containers are saved right after this one. The list may be filled by the plain data writer.
+     */
+    void write(File file, Cipher cipher, PlainDataWriter plainDataWriter, List<EncryptedContainer> followingContainers) throws Exception {
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        ByteBuffer header = ByteBuffer.allocate(getHeaderSize());
+        putHeader(header, 0);
+
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        OutputStream out = new CipherOutputStream(new BufferedOutputStream(fos, WRITE_BUFFER_SIZE), cipher);
+        try {
+            fos.write(header.array());
+            plainDataWriter.writeTo(out);
+        }
+        finally {
+            // Also writes the final cipher block
+            out.close();
+        }
+
+        long encryptedLength = tmpFile.length() - header.capacity();
+        PasswordMetrics.add(PasswordMetrics.Counter.BYTES_WRITTEN, tmpFile.length());
+        if (encryptedLength > Integer.MAX_VALUE) {
+            throw new IOException("File " + file.getName() + " is too large");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            raf.seek(header.capacity() - 4);
+            raf.writeInt((int) encryptedLength);
+
+            FileChannel channel = raf.getChannel();
+            channel.position(raf.length());
+            for (EncryptedContainer container : followingContainers) {
+                ByteBuffer buffer = container.encode();
+                PasswordMetrics.add(PasswordMetrics.Counter.BYTES_WRITTEN, buffer.remaining());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            raf.getFD().sync();
+        }
+        finally {
+            raf.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Unable to save file " + file.getPath());
+        }
+    }
+
+    /**
+     * Appends this container at the end of the given file. The whole container is written at once, so an
+     * interrupted write can only damage the file tail.
+     */
+    void append(File file) throws IOException {
+        writeToChannel(file, true, encode());
+    }
+
+    /**
+     * Appends several containers at the end of the given file, with a single write and disk sync.
+     */
+    static void append(File file, List<EncryptedContainer> containers) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[containers.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = containers.get(i).encode();
+        }
+        writeToChannel(file, true, buffers);
+    }
+
+    /**
+     * A failed append is rolled back, so that the containers can be appended again without leaving a damaged
+     * one in the middle of the file.
+     */
+    private static void writeToChannel(File file, boolean append, ByteBuffer... buffers) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file, append);
+        FileChannel channel = fos.getChannel();
+        long initialSize = channel.size();
+        try {
+            for (ByteBuffer buffer : buffers) {
+                PasswordMetrics.add(PasswordMetrics.Counter.BYTES_WRITTEN, buffer.remaining());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+        catch (IOException e) {
+            if (append) {
+                try {
+                    channel.truncate(initialSize);
+                }
+                catch (IOException ignored) {
+                    // Replay stops at the damaged container anyway
+                }
+            }
+            throw e;
+        }
+        finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Change of the password database content or lock state, sent to change listeners so that callers can cache
+ * password info and know when to drop them. Events don't hold any password info field.
+ *
+ * Versions are increased by one for each event, so listeners can tell whether they missed some.
+ */
+public class PasswordChangeEvent {
+    public enum Type {
+        SET("set"),
+        DELETE("delete"),
+        LOCK("lock"),
+        UNLOCK("unlock");
+
+        public final String mValue;
+
+        Type(String value) {
+            mValue = value;
+        }
+    }
+
+    public final Type type;
+    public final long version;
+    // Changed password info, for SET and DELETE events only
+    public final String appID;
+    public final String key;
+
+    PasswordChangeEvent(Type type, long version, String appID, String key) {
+        this.type = type;
+        this.version = version;
+        this.appID = appID;
+        this.key = key;
+    }
+
+    public JSONObject asJsonObject() throws JSONException {
+        JSONObject jsonObj = new JSONObject();
+        jsonObj.put("type", type.mValue);
+        jsonObj.put("version", version);
+        if (key != null) {
+            jsonObj.put("appID", appID);
+            jsonObj.put("key", key);
+        }
+        return jsonObj;
+    }
+}
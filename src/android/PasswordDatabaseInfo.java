@@ -1,13 +1,32 @@
 package org.elastos.essentials.plugins.passwordmanager;
 
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
 import org.elastos.essentials.plugins.passwordmanager.passwordinfo.PasswordInfo;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Database JSON format:
@@ -15,24 +34,97 @@ import java.util.Iterator;
  * {
  *     "applications": {
  *          "APPIID1": {
- *              "passwordentries": [
+ *              "passwordindex": [
  *                  {
- *                      RAW_USER_OBJECT
+ *                      "key": KEY, "type": TYPE, "displayName": DISPLAY_NAME
  *                  }
  *              ]
  *          }
  *     }
  * }
  *
+ * Each password entry (RAW_USER_OBJECT) is encrypted separately and saved right after the encrypted database
+ * JSON, in the order of the index. Older databases have the entries inline instead of the index, in a
+ * "passwordentries" array.
+ *
  * We work directly with raw JSONObjects to make it easier later to maintain the structure, add new fields,
- * handle specific or missing items.
+ * handle specific or missing items. Password entries themselves are kept in memory as typed password info objects,
+ * and converted to JSON only when the database is saved.
+ *
+ * With the sharded storage, the same content is split into a manifest (the above JSON with empty application
+ * objects) and one shard per application (the application object itself). Shards are loaded only when the
+ * application entries are needed.
  */
 class PasswordDatabaseInfo {
     private static final String APPLICATIONS_KEY = "applications";
     private static final String PASSWORD_ENTRIES_KEY = "passwordentries";
+    private static final String PASSWORD_INDEX_KEY = "passwordindex";
+    private static final String GENERATION_KEY = "generation";
+    private static final String JOURNAL_OPERATION_KEY = "operation";
+    private static final String JOURNAL_APPID_KEY = "appid";
+    private static final String JOURNAL_ENTRY_KEY = "entry";
+    private static final String JOURNAL_KEY_KEY = "key";
+    private static final String JOURNAL_RECORDS_KEY = "records";
+    private static final String JOURNAL_OPERATION_SET = "set";
+    private static final String JOURNAL_OPERATION_DELETE = "delete";
+    private static final String JOURNAL_OPERATION_BATCH = "batch";
+    private static final String CURSOR_APPID_KEY = "appID";
+    private static final String CURSOR_KEY_KEY = "key";
+    private static final String CURSOR_POSITION_KEY = "position";
     JSONObject rawJson;
-    String activeMasterPassword = null;
+    // Password entries of each application, indexed by key. These entries are not part of rawJson.
+    private final LinkedHashMap<String, LinkedHashMap<String, PasswordEntry>> entries = new LinkedHashMap<>();
+    // Master password, kept in memory for a while after unlocking the database
+    SecretBuffer activeMasterPassword = null;
+    // Random key used to encrypt the database content, itself saved encrypted with the master password
+    SecretBuffer dataKey = null;
+    SecretKeySpec dataKeySpec = null;
+    // Encrypts and decrypts password entries with the data key
+    PasswordEntry.EntryCipher entryCipher = null;
+    // Key derived from the master password, used to encrypt the data key. Kept while the database is unlocked
+    // so that saves don't have to run the key derivation again.
+    MasterKey masterKey = null;
     Date openingTime = null;
+    // Number of change records appended to the journal since the last full snapshot
+    int journalRecordsCount = 0;
+    // Changes applied in memory but not saved yet, by application and entry key. Only the latest change of
+    // each entry is kept.
+    final LinkedHashMap<String, JSONObject> pendingJournalRecords = new LinkedHashMap<>();
+    private int queuedBatchesCount = 0;
+    // Callers waiting for the pending changes to be saved
+    final ArrayList<PasswordManager.OnDatabaseSavedListener> pendingSaveListeners = new ArrayList<>();
+    boolean saveScheduled = false;
+    // Error of the last failed save while changes are still pending, null otherwise
+    String saveError = null;
+    // Whether this database is saved as a manifest and one shard per application
+    boolean sharded = false;
+    // Whether the list of applications changed since the manifest was last saved
+    boolean manifestDirty = false;
+    // Index of all entries, built by the first search and then kept up to date. Null until then.
+    private PasswordSearchIndex searchIndex = null;
+
+    /**
+     * Entries of a page, not decrypted yet, and the cursor to get the next page (null if this is the last one).
+     */
+    static class EntryPage {
+        final ArrayList<PasswordEntry> entries = new ArrayList<>();
+        String nextCursor = null;
+    }
+
+    /**
+     * Key derived from the master password, with the parameters used to derive it.
+     */
+    static class MasterKey {
+        final SecretKeySpec keySpec;
+        final byte[] salt;
+        final int iterations;
+
+        MasterKey(SecretKeySpec keySpec, byte[] salt, int iterations) {
+            this.keySpec = keySpec;
+            this.salt = salt;
+            this.iterations = iterations;
+        }
+    }
 
     private PasswordDatabaseInfo() {
         openingTime = new Date();
@@ -52,143 +144,667 @@ class PasswordDatabaseInfo {
         }
     }
 
-    public static PasswordDatabaseInfo fromJson(String json) throws JSONException {
+    public static PasswordDatabaseInfo fromJson(String json) throws Exception {
+        return fromJson(new StringReader(json), Collections.<EncryptedContainer>emptyIterator());
+    }
+
+    /**
+     * Parses the database content while it's being read, without building the whole JSON text as a string.
+     * Password entries go straight to the entries index, they are put back into the JSON tree
+     * only while serializing the database.
+     */
+    static PasswordDatabaseInfo fromJson(Reader reader, Iterator<EncryptedContainer> entryContainers) throws Exception {
         PasswordDatabaseInfo info = new PasswordDatabaseInfo();
-        info.rawJson = new JSONObject(json);
+        info.readDatabaseJson(reader, false, entryContainers);
         return info;
     }
 
-    public PasswordInfo getPasswordInfo(String appID, String key) throws Exception {
-        JSONObject appIDContent = getAppIDContent(appID);
-        if (appIDContent == null) {
-            // No entry for this app ID yet, so we can't find the requested key
-            return null;
+    /**
+     * Parses a sharded database manifest. Application entries are loaded later, from each application shard.
+     */
+    static PasswordDatabaseInfo fromManifestJson(Reader reader) throws Exception {
+        PasswordDatabaseInfo info = new PasswordDatabaseInfo();
+        info.sharded = true;
+        info.readDatabaseJson(reader, true, Collections.<EncryptedContainer>emptyIterator());
+        return info;
+    }
+
+    private void readDatabaseJson(Reader reader, boolean manifest, Iterator<EncryptedContainer> entryContainers) throws Exception {
+        rawJson = new JSONObject();
+
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (name.equals(APPLICATIONS_KEY))
+                rawJson.put(name, readApplications(jsonReader, manifest, entryContainers));
+            else
+                rawJson.put(name, readJsonValue(jsonReader));
+        }
+        jsonReader.endObject();
+        checkEndOfDocument(jsonReader, entryContainers);
+
+        if (!rawJson.has(APPLICATIONS_KEY)) {
+            throw new JSONException("Missing " + APPLICATIONS_KEY + " in password database");
+        }
+    }
+
+    /**
+     * Loads the content of an application shard, the application object of a non sharded database.
+     */
+    void loadShardJson(String appID, Reader reader, Iterator<EncryptedContainer> entryContainers) throws Exception {
+        JsonReader jsonReader = new JsonReader(reader);
+        JSONObject appIDContent = readAppContent(jsonReader, appID, entryContainers);
+        checkEndOfDocument(jsonReader, entryContainers);
+
+        rawJson.getJSONObject(APPLICATIONS_KEY).put(appID, appIDContent);
+    }
+
+    private static void checkEndOfDocument(JsonReader jsonReader, Iterator<EncryptedContainer> entryContainers) throws IOException, JSONException {
+        // Reading up to the end of the input also makes a decrypting reader check the final padding
+        if (jsonReader.peek() != JsonToken.END_DOCUMENT || entryContainers.hasNext()) {
+            throw new JSONException("Unexpected data after the password database content");
+        }
+    }
+
+    private JSONObject readApplications(JsonReader jsonReader, boolean manifest, Iterator<EncryptedContainer> entryContainers) throws Exception {
+        JSONObject applications = new JSONObject();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String appID = jsonReader.nextName();
+            if (manifest) {
+                // Placeholder until the application shard is loaded
+                jsonReader.skipValue();
+                applications.put(appID, new JSONObject());
+            }
+            else {
+                applications.put(appID, readAppContent(jsonReader, appID, entryContainers));
+            }
+        }
+        jsonReader.endObject();
+        return applications;
+    }
+
+    private JSONObject readAppContent(JsonReader jsonReader, String appID, Iterator<EncryptedContainer> entryContainers) throws Exception {
+        JSONObject appIDContent = new JSONObject();
+        LinkedHashMap<String, PasswordEntry> appEntries = new LinkedHashMap<>();
+
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (name.equals(PASSWORD_INDEX_KEY) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Entries are only decrypted when accessed
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    JSONObject indexJson = readJsonObject(jsonReader);
+                    if (!entryContainers.hasNext()) {
+                        throw new JSONException("Missing encrypted password entry");
+                    }
+                    PasswordEntry entry = PasswordEntry.fromIndexJson(appID, indexJson, entryContainers.next());
+                    appEntries.put(entry.key, entry);
+                }
+                jsonReader.endArray();
+            }
+            else if (name.equals(PASSWORD_ENTRIES_KEY) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    PasswordEntry entry = PasswordEntry.fromJson(appID, readJsonObject(jsonReader));
+                    appEntries.put(entry.key, entry);
+                }
+                jsonReader.endArray();
+            }
+            else if (!name.equals(PASSWORD_ENTRIES_KEY) && !name.equals(PASSWORD_INDEX_KEY)) {
+                appIDContent.put(name, readJsonValue(jsonReader));
+            }
+            else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+
+        entries.put(appID, appEntries);
+        // Entries loaded after the search index was built (shard) are not part of it
+        searchIndex = null;
+        return appIDContent;
+    }
+
+    private static JSONObject readJsonObject(JsonReader jsonReader) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            object.put(name, readJsonValue(jsonReader));
+        }
+        jsonReader.endObject();
+        return object;
+    }
+
+    private static Object readJsonValue(JsonReader jsonReader) throws IOException, JSONException {
+        switch (jsonReader.peek()) {
+            case BEGIN_OBJECT:
+                return readJsonObject(jsonReader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    array.put(readJsonValue(jsonReader));
+                }
+                jsonReader.endArray();
+                return array;
+            case STRING:
+                return jsonReader.nextString();
+            case NUMBER:
+                // Same number types as when JSONObject parses the text itself
+                return new JSONTokener(jsonReader.nextString()).nextValue();
+            case BOOLEAN:
+                return jsonReader.nextBoolean();
+            case NULL:
+                jsonReader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected JSON token " + jsonReader.peek());
+        }
+    }
+
+    /**
+     * Writes the database content in the JSON format described above, without building the whole JSON text
+     * first. The encrypted password entries to save after this content are added to entryContainers.
+     */
+    void writeJson(Writer writer, List<EncryptedContainer> entryContainers) throws Exception {
+        writeDatabaseJson(writer, false, entryContainers);
+    }
+
+    /**
+     * Writes the sharded database manifest: the database JSON content with empty application objects.
+     */
+    void writeManifestJson(Writer writer) throws Exception {
+        writeDatabaseJson(writer, true, null);
+    }
+
+    /**
+     * Writes an application shard: the application object of a non sharded database. The application shard
+     * must be loaded.
+     */
+    void writeShardJson(Writer writer, String appID, List<EncryptedContainer> entryContainers) throws Exception {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        writeAppContent(jsonWriter, appID, entryContainers);
+        jsonWriter.flush();
+    }
+
+    private void writeDatabaseJson(Writer writer, boolean manifest, List<EncryptedContainer> entryContainers) throws Exception {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginObject();
+        Iterator<String> it = rawJson.keys();
+        while (it.hasNext()) {
+            String name = it.next();
+            jsonWriter.name(name);
+            if (name.equals(APPLICATIONS_KEY))
+                writeApplications(jsonWriter, rawJson.getJSONObject(APPLICATIONS_KEY), manifest, entryContainers);
+            else
+                writeJsonValue(jsonWriter, rawJson.get(name));
+        }
+        jsonWriter.endObject();
+        jsonWriter.flush();
+    }
+
+    private void writeApplications(JsonWriter jsonWriter, JSONObject applications, boolean manifest, List<EncryptedContainer> entryContainers) throws Exception {
+        jsonWriter.beginObject();
+        Iterator<String> it = applications.keys();
+        while (it.hasNext()) {
+            String appID = it.next();
+            jsonWriter.name(appID);
+            if (manifest) {
+                jsonWriter.beginObject();
+                jsonWriter.endObject();
+            }
+            else {
+                writeAppContent(jsonWriter, appID, entryContainers);
+            }
+        }
+        jsonWriter.endObject();
+    }
+
+    private void writeAppContent(JsonWriter jsonWriter, String appID, List<EncryptedContainer> entryContainers) throws Exception {
+        JSONObject appIDContent = rawJson.getJSONObject(APPLICATIONS_KEY).getJSONObject(appID);
+
+        jsonWriter.beginObject();
+        Iterator<String> contentIt = appIDContent.keys();
+        while (contentIt.hasNext()) {
+            String name = contentIt.next();
+            jsonWriter.name(name);
+            writeJsonValue(jsonWriter, appIDContent.get(name));
+        }
+
+        LinkedHashMap<String, PasswordEntry> appEntries = entries.get(appID);
+        if (appEntries != null) {
+            jsonWriter.name(PASSWORD_INDEX_KEY);
+            jsonWriter.beginArray();
+            for (PasswordEntry entry : appEntries.values()) {
+                writeJsonValue(jsonWriter, entry.toIndexJson());
+                entryContainers.add(entry.getEncrypted(entryCipher));
+            }
+            jsonWriter.endArray();
+        }
+        jsonWriter.endObject();
+    }
+
+    /**
+     * Applications whose entries are not loaded yet. Always empty for non sharded databases.
+     */
+    ArrayList<String> getUnloadedAppIDs() throws JSONException {
+        ArrayList<String> appIDs = new ArrayList<>();
+        Iterator<String> it = rawJson.getJSONObject(APPLICATIONS_KEY).keys();
+        while (it.hasNext()) {
+            String appID = it.next();
+            if (!entries.containsKey(appID)) {
+                appIDs.add(appID);
+            }
+        }
+        return appIDs;
+    }
+
+    /**
+     * Loaded entries of the given application, or of all applications if appID is null.
+     */
+    ArrayList<PasswordEntry> getEntries(String appID) {
+        ArrayList<PasswordEntry> appEntries = new ArrayList<>();
+        for (Map.Entry<String, LinkedHashMap<String, PasswordEntry>> it : entries.entrySet()) {
+            if (appID == null || appID.equals(it.getKey())) {
+                appEntries.addAll(it.getValue().values());
+            }
+        }
+        return appEntries;
+    }
+
+    ArrayList<String> getAppIDs() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    private static void writeJsonValue(JsonWriter jsonWriter, Object value) throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            jsonWriter.beginObject();
+            Iterator<String> it = object.keys();
+            while (it.hasNext()) {
+                String name = it.next();
+                jsonWriter.name(name);
+                writeJsonValue(jsonWriter, object.get(name));
+            }
+            jsonWriter.endObject();
+        }
+        else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            jsonWriter.beginArray();
+            for (int i=0; i<array.length(); i++) {
+                writeJsonValue(jsonWriter, array.get(i));
+            }
+            jsonWriter.endArray();
+        }
+        else if (value instanceof Number) {
+            jsonWriter.value((Number) value);
+        }
+        else if (value instanceof Boolean) {
+            jsonWriter.value((Boolean) value);
+        }
+        else if (value == null || value == JSONObject.NULL) {
+            jsonWriter.nullValue();
         }
+        else {
+            jsonWriter.value(value.toString());
+        }
+    }
 
-        JSONArray passwordEntries = appIDContent.getJSONArray(PASSWORD_ENTRIES_KEY);
-        JSONObject entry = passwordEntry(passwordEntries, key);
+    public PasswordInfo getPasswordInfo(String appID, String key) throws Exception {
+        PasswordEntry entry = getPasswordEntry(appID, key);
         if (entry == null) {
             // No such entry exists
             return null;
         }
 
-        PasswordInfo info = PasswordInfoBuilder.buildFromType(entry);
-        if (info != null) {
-            info.appID = appID;
+        return entry.getInfo(entryCipher);
+    }
+
+    PasswordEntry getPasswordEntry(String appID, String key) {
+        LinkedHashMap<String, PasswordEntry> appEntries = entries.get(appID);
+        if (appEntries == null) {
+            // No entry for this app ID yet, so we can't find the requested key
+            return null;
         }
-        return info;
+
+        return appEntries.get(key);
     }
 
-    public void setPasswordInfo(String appID, PasswordInfo info) throws JSONException {
-        JSONObject appIDContent = getAppIDContent(appID);
-        if (appIDContent == null) {
+    public void setPasswordInfo(String appID, PasswordInfo info) throws Exception {
+        info.appID = appID;
+        setPasswordEntry(appID, new PasswordEntry(info));
+    }
+
+    private void setPasswordEntry(String appID, PasswordEntry entry) throws Exception {
+        LinkedHashMap<String, PasswordEntry> appEntries = entries.get(appID);
+        if (appEntries == null) {
             // No entry for this app ID yet, create one and add it
-            appIDContent = createdEmptyAppIDContent();
             JSONObject applications = rawJson.getJSONObject(APPLICATIONS_KEY);
-            applications.put(appID, appIDContent);
+            applications.put(appID, new JSONObject());
+
+            appEntries = new LinkedHashMap<>();
+            entries.put(appID, appEntries);
+            manifestDirty = true;
         }
 
-        JSONArray passwordEntries = appIDContent.getJSONArray(PASSWORD_ENTRIES_KEY);
-        if (keyInPasswordEntries(passwordEntries, info.key)) {
-            // This entry already exists. Delete it first before re-adding its updated version.
-            deletePasswordEntryFromKey(passwordEntries, info.key);
+        // Existing entries are replaced
+        PasswordEntry previousEntry = appEntries.put(entry.key, entry);
+        if (searchIndex != null) {
+            if (previousEntry != null)
+                searchIndex.remove(previousEntry);
+            searchIndex.add(entry, entry.getInfo(entryCipher));
         }
-        addPasswordEntry(passwordEntries, info);
     }
 
     public ArrayList<PasswordInfo> getAllPasswordInfo() throws Exception {
-        JSONObject applications = rawJson.getJSONObject(APPLICATIONS_KEY);
-
         ArrayList<PasswordInfo> infos = new ArrayList<>();
-        Iterator<String> it = applications.keys();
-        while (it.hasNext()) {
-            String appID = it.next();
-            JSONObject appIDContent = getAppIDContent(appID);
-            if (appIDContent != null) {
-                JSONArray passwordEntries = appIDContent.getJSONArray(PASSWORD_ENTRIES_KEY);
-                for (int i=0; i<passwordEntries.length(); i++) {
-                    JSONObject entry = passwordEntries.getJSONObject(i);
-                    PasswordInfo info = PasswordInfoBuilder.buildFromType(entry);
-                    if (info != null) {
-                        info.appID = appID;
-                        infos.add(info);
-                    }
-                }
+        for (LinkedHashMap<String, PasswordEntry> appEntries : entries.values()) {
+            for (PasswordEntry entry : appEntries.values()) {
+                infos.add(entry.getInfo(entryCipher));
             }
         }
         return infos;
     }
 
-    public void deletePasswordInfo(String appID, String key) throws JSONException {
-        JSONObject appIDContent = getAppIDContent(appID);
-        if (appIDContent == null) {
+    public void deletePasswordInfo(String appID, String key) {
+        LinkedHashMap<String, PasswordEntry> appEntries = entries.get(appID);
+        if (appEntries == null) {
             // No entry for this app ID yet, so we can't find the requested key
             return;
         }
 
-        JSONArray passwordEntries = appIDContent.getJSONArray(PASSWORD_ENTRIES_KEY);
-        deletePasswordEntryFromKey(passwordEntries, key);
+        PasswordEntry entry = appEntries.remove(key);
+        if (searchIndex != null && entry != null) {
+            searchIndex.remove(entry);
+        }
     }
 
-    private JSONObject getAppIDContent(String appID) throws JSONException {
-        JSONObject applications = rawJson.getJSONObject(APPLICATIONS_KEY);
-        if (applications.has(appID)) {
-            return applications.getJSONObject(appID);
-        }
-        else {
-            return null;
+    /**
+     * Entries in database order, starting after the last entry of the previous page. Only index fields are used
+     * to filter entries, so nothing is decrypted here, and entries before the cursor are skipped by
+     * application as much as possible.
+     *
+     * @param cursor Cursor returned with the previous page, or null for the first page.
+     * @param appID Only returns entries of this application, if not null.
+     * @param type Only returns entries of this type, if not null.
+     */
+    EntryPage getEntryPage(String cursor, String appID, PasswordType type, int pageSize) throws JSONException {
+        int startPosition = getCursorPosition(cursor);
+        EntryPage page = new EntryPage();
+        PasswordEntry lastEntry = null;
+        int lastPosition = 0;
+
+        int position = 0;
+        for (Map.Entry<String, LinkedHashMap<String, PasswordEntry>> it : entries.entrySet()) {
+            LinkedHashMap<String, PasswordEntry> appEntries = it.getValue();
+            if (position + appEntries.size() <= startPosition || (appID != null && !appID.equals(it.getKey()))) {
+                position += appEntries.size();
+                continue;
+            }
+
+            for (PasswordEntry entry : appEntries.values()) {
+                if (position >= startPosition && (type == null || entry.type == type)) {
+                    if (page.entries.size() == pageSize) {
+                        // There is at least one more entry: the next page starts after the last returned one
+                        page.nextCursor = buildCursor(lastEntry, lastPosition);
+                        return page;
+                    }
+                    page.entries.add(entry);
+                    lastEntry = entry;
+                    lastPosition = position;
+                }
+                position++;
+            }
         }
+        return page;
     }
 
-    private JSONObject createdEmptyAppIDContent() throws JSONException {
-        JSONObject appIDContent = new JSONObject();
-        appIDContent.put(PASSWORD_ENTRIES_KEY, new JSONArray());
-        return appIDContent;
+    /**
+     * Cursors are opaque to callers. They hold the last returned entry, and its position in case it's deleted
+     * before the next page is requested.
+     */
+    private static String buildCursor(PasswordEntry lastEntry, int lastPosition) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(CURSOR_APPID_KEY, lastEntry.appID);
+        json.put(CURSOR_KEY_KEY, lastEntry.key);
+        json.put(CURSOR_POSITION_KEY, lastPosition);
+        return Base64.encodeToString(json.toString().getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP | Base64.URL_SAFE);
     }
 
-    private JSONObject passwordEntry(JSONArray entries, String key) throws JSONException {
-        for (int i=0; i<entries.length(); i++) {
-            JSONObject info = entries.getJSONObject(i);
-            if (info.getString("key").equals(key))
-                return info;
+    /**
+     * Position of the first entry of the page that follows the given cursor.
+     */
+    private int getCursorPosition(String cursor) throws JSONException {
+        if (cursor == null) {
+            return 0;
         }
-        return null;
-    }
 
-    private int passwordEntryIndex(JSONArray entries, String key) throws JSONException {
-        for (int i=0; i<entries.length(); i++) {
-            JSONObject info = entries.getJSONObject(i);
-            if (info.getString("key").equals(key))
-                return i;
+        JSONObject json;
+        try {
+            json = new JSONObject(new String(Base64.decode(cursor, Base64.NO_WRAP | Base64.URL_SAFE), StandardCharsets.UTF_8));
+        }
+        catch (IllegalArgumentException | JSONException e) {
+            throw new JSONException("Invalid page cursor");
         }
-        return -1;
+        String lastAppID = json.getString(CURSOR_APPID_KEY);
+        String lastKey = json.getString(CURSOR_KEY_KEY);
+
+        // Entries may have been added or deleted since the cursor was built: look for the last returned entry
+        int position = 0;
+        for (Map.Entry<String, LinkedHashMap<String, PasswordEntry>> it : entries.entrySet()) {
+            LinkedHashMap<String, PasswordEntry> appEntries = it.getValue();
+            if (!it.getKey().equals(lastAppID) || !appEntries.containsKey(lastKey)) {
+                position += appEntries.size();
+                continue;
+            }
+
+            for (String key : appEntries.keySet()) {
+                if (key.equals(lastKey)) {
+                    return position + 1;
+                }
+                position++;
+            }
+        }
+
+        // The last returned entry was deleted in the meantime. Its position is the closest we can get.
+        return json.getInt(CURSOR_POSITION_KEY);
     }
 
-    private boolean keyInPasswordEntries(JSONArray entries, String key) throws JSONException {
-        return passwordEntryIndex(entries, key) >= 0;
+    boolean hasSearchIndex() {
+        return searchIndex != null;
+    }
+
+    /**
+     * Password info whose searchable fields match the query, sorted by display name. All entries must be
+     * loaded, and decrypted if the search index is not built yet.
+     *
+     * @param type Only returns password info of this type, if not null.
+     * @param maxResults Maximum number of returned password info, or 0 for no limit.
+     */
+    public ArrayList<PasswordInfo> searchPasswordInfo(String query, PasswordType type, int maxResults) throws Exception {
+        if (searchIndex == null) {
+            PasswordSearchIndex index = new PasswordSearchIndex();
+            for (LinkedHashMap<String, PasswordEntry> appEntries : entries.values()) {
+                for (PasswordEntry entry : appEntries.values()) {
+                    index.add(entry, entry.getInfo(entryCipher));
+                }
+            }
+            searchIndex = index;
+        }
+
+        ArrayList<PasswordInfo> infos = new ArrayList<>();
+        for (PasswordEntry entry : searchIndex.search(query)) {
+            if (type == null || entry.type == type) {
+                infos.add(entry.getInfo(entryCipher));
+            }
+        }
+
+        Collections.sort(infos, (info1, info2) -> {
+            int result = compareNullable(info1.displayName, info2.displayName);
+            return result != 0 ? result : compareNullable(info1.key, info2.key);
+        });
+        if (maxResults > 0 && infos.size() > maxResults) {
+            return new ArrayList<>(infos.subList(0, maxResults));
+        }
+        return infos;
     }
 
-    private void deletePasswordEntryFromKey(JSONArray entries, String key) throws JSONException {
-        int deletionIndex = passwordEntryIndex(entries, key);
-        if (deletionIndex >= 0)
-            entries.remove(deletionIndex);
+    private static int compareNullable(String s1, String s2) {
+        if (s1 == null || s2 == null)
+            return s1 == null ? (s2 == null ? 0 : -1) : 1;
+        return s1.compareToIgnoreCase(s2);
     }
 
-    private void addPasswordEntry(JSONArray entries, PasswordInfo info) throws JSONException {
+    /**
+     * Journal record describing a password info creation or update, to be appended to the database journal
+     * instead of rewriting the whole database.
+     */
+    static JSONObject buildSetJournalRecord(String appID, PasswordInfo info) throws JSONException {
         JSONObject json = info.asJsonObject();
         if (json == null) {
             throw new JSONException("Unable to create JSON object from password info");
         }
 
-        entries.put(json);
+        JSONObject record = new JSONObject();
+        record.put(JOURNAL_OPERATION_KEY, JOURNAL_OPERATION_SET);
+        record.put(JOURNAL_APPID_KEY, appID);
+        record.put(JOURNAL_ENTRY_KEY, json);
+        return record;
+    }
+
+    /**
+     * Journal record describing a password info deletion.
+     */
+    static JSONObject buildDeleteJournalRecord(String appID, String key) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put(JOURNAL_OPERATION_KEY, JOURNAL_OPERATION_DELETE);
+        record.put(JOURNAL_APPID_KEY, appID);
+        record.put(JOURNAL_KEY_KEY, key);
+        return record;
+    }
+
+    /**
+     * Journal record grouping the set and delete records of a single application, saved as a single encrypted
+     * container so that either all or none of them are replayed.
+     */
+    static JSONObject buildBatchJournalRecord(String appID, JSONArray records) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put(JOURNAL_OPERATION_KEY, JOURNAL_OPERATION_BATCH);
+        record.put(JOURNAL_APPID_KEY, appID);
+        record.put(JOURNAL_RECORDS_KEY, records);
+        return record;
+    }
+
+    static String getJournalRecordAppID(JSONObject record) throws JSONException {
+        return record.getString(JOURNAL_APPID_KEY);
+    }
+
+    /**
+     * Queues a change to be saved with the next flush, replacing any pending change of the same entry.
+     * Batches (null key) never replace other changes.
+     */
+    void queueJournalRecord(String appID, String key, JSONObject record) {
+        String recordKey = key != null ? appID + "/" + key : "#batch" + (queuedBatchesCount++);
+        pendingJournalRecords.remove(recordKey);
+        pendingJournalRecords.put(recordKey, record);
+    }
+
+    /**
+     * Replays a journal record over the loaded snapshot. Records hold the full entry for sets and the key for
+     * deletions. Replaying a record written before the snapshot could revert a newer value: such records are
+     * rejected by their authentication, see getGeneration().
+     */
+    void applyJournalRecord(JSONObject record) throws Exception {
+        String operation = record.getString(JOURNAL_OPERATION_KEY);
+        String appID = record.getString(JOURNAL_APPID_KEY);
+        if (operation.equals(JOURNAL_OPERATION_SET)) {
+            setPasswordEntry(appID, PasswordEntry.fromJson(appID, record.getJSONObject(JOURNAL_ENTRY_KEY)));
+        }
+        else if (operation.equals(JOURNAL_OPERATION_DELETE)) {
+            deletePasswordInfo(appID, record.getString(JOURNAL_KEY_KEY));
+        }
+        else if (operation.equals(JOURNAL_OPERATION_BATCH)) {
+            JSONArray records = record.getJSONArray(JOURNAL_RECORDS_KEY);
+            for (int i = 0; i < records.length(); i++) {
+                applyJournalRecord(records.getJSONObject(i));
+            }
+        }
+        else {
+            throw new JSONException("Unknown journal operation "+operation);
+        }
+    }
+
+    /**
+     * The given key is wiped once copied.
+     */
+    void setDataKey(byte[] dataKey) {
+        this.dataKey = SecretBuffer.copyOf(dataKey);
+        this.dataKeySpec = new SecretKeySpec(dataKey, "AES");
+        Arrays.fill(dataKey, (byte) 0);
+    }
+
+    /**
+     * Replaces the remembered master password by a copy of the given one.
+     */
+    void setActiveMasterPassword(char[] masterPassword) {
+        if (activeMasterPassword != null) {
+            activeMasterPassword.wipe();
+        }
+        activeMasterPassword = SecretBuffer.copyOf(masterPassword);
+    }
+
+    /**
+     * Number of the database snapshot, increased each time a full snapshot is saved, or 0 for snapshots saved
+     * before it existed. Journal records are authenticated with the generation of the snapshot they follow, so
+     * that records left over from an older snapshot are never replayed over a newer one.
+     */
+    long getGeneration() {
+        return rawJson.optLong(GENERATION_KEY, 0);
+    }
+
+    void setGeneration(long generation) throws JSONException {
+        rawJson.put(GENERATION_KEY, generation);
+    }
+
+    /**
+     * Data authenticated with the journal records following the snapshot of the given generation. Records
+     * following snapshots saved without generation are not bound to it.
+     */
+    static byte[] getJournalAssociatedData(long generation) {
+        if (generation == 0)
+            return null;
+
+        return ByteBuffer.allocate(8).putLong(generation).array();
+    }
+
+    ArrayList<PasswordManager.OnDatabaseSavedListener> takePendingSaveListeners() {
+        ArrayList<PasswordManager.OnDatabaseSavedListener> listeners = new ArrayList<>(pendingSaveListeners);
+        pendingSaveListeners.clear();
+        return listeners;
     }
 
     /**
      * Closes the password database and makes things secure.
      */
-    void lock() {
+    synchronized void lock() {
         rawJson = null;
-        activeMasterPassword = null;
+        entries.clear();
+        searchIndex = null;
+        if (activeMasterPassword != null) {
+            activeMasterPassword.wipe();
+            activeMasterPassword = null;
+        }
+        if (dataKey != null) {
+            dataKey.wipe();
+            dataKey = null;
+        }
+        dataKeySpec = null;
+        entryCipher = null;
+        masterKey = null;
         // NOTE: nothing else to do for now.
     }
 }
\ No newline at end of file
@@ -0,0 +1,181 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.elastos.essentials.plugins.passwordmanager.passwordinfo.PasswordInfo;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Password info as kept in memory by an unlocked database.
+ *
+ * Each entry is saved encrypted on its own, and the database index only holds the fields needed to find and
+ * list entries (key, type, display name). Loaded entries are decrypted only when their password info is first
+ * accessed. Entries that didn't change since they were loaded are saved again without being re-encrypted.
+ */
+class PasswordEntry {
+    private static final String INDEX_KEY_KEY = "key";
+    private static final String INDEX_TYPE_KEY = "type";
+    private static final String INDEX_DISPLAY_NAME_KEY = "displayName";
+
+    /**
+     * Encrypts and decrypts entries content with the database data key. The associated data is authenticated
+     * with the content but not saved with it.
+     */
+    interface EntryCipher {
+        byte[] decrypt(EncryptedContainer container, byte[] associatedData) throws Exception;
+        EncryptedContainer encrypt(byte[] data, byte[] associatedData) throws Exception;
+    }
+
+    final String appID;
+    final String key;
+    final PasswordType type;
+    final String displayName;
+    // Decrypted password info. Null until first accessed.
+    private PasswordInfo info = null;
+    // Fields of the saved entry that this version doesn't know (ex: saved by a newer version). They are not
+    // exposed to applications but saved back unchanged. Null if there is no such field.
+    private JSONObject unknownFields = null;
+    // Entry content as saved in the database file. Null if the entry was not saved yet.
+    private EncryptedContainer encrypted = null;
+
+    PasswordEntry(PasswordInfo info) {
+        this(info.appID, info.key, info.type, info.displayName);
+        this.info = info;
+    }
+
+    private PasswordEntry(String appID, String key, PasswordType type, String displayName) {
+        this.appID = appID;
+        this.key = key;
+        this.type = type;
+        this.displayName = displayName;
+    }
+
+    static PasswordEntry fromJson(String appID, JSONObject json) throws Exception {
+        PasswordInfo info = PasswordInfoBuilder.buildFromType(json);
+        if (info == null) {
+            throw new JSONException("Unable to create password info from JSON object");
+        }
+        info.appID = appID;
+
+        PasswordEntry entry = new PasswordEntry(info);
+        entry.unknownFields = extractUnknownFields(info, json);
+        return entry;
+    }
+
+    /**
+     * Entry known only by its index fields and encrypted content, until it's accessed.
+     */
+    static PasswordEntry fromIndexJson(String appID, JSONObject indexJson, EncryptedContainer encrypted) throws JSONException {
+        PasswordType type = PasswordType.fromValue(indexJson.getInt(INDEX_TYPE_KEY));
+        if (type == null) {
+            // Same as entries saved in full: unknown types can't be read
+            throw new JSONException("Unknown password info type " + indexJson.getInt(INDEX_TYPE_KEY));
+        }
+
+        PasswordEntry entry = new PasswordEntry(appID, indexJson.getString(INDEX_KEY_KEY), type,
+                indexJson.optString(INDEX_DISPLAY_NAME_KEY, null));
+        entry.encrypted = encrypted;
+        return entry;
+    }
+
+    JSONObject toIndexJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(INDEX_KEY_KEY, key);
+        json.put(INDEX_TYPE_KEY, type.mValue);
+        json.put(INDEX_DISPLAY_NAME_KEY, displayName);
+        return json;
+    }
+
+    PasswordInfoMetadata getMetadata() {
+        return new PasswordInfoMetadata(key, type, displayName, appID);
+    }
+
+    boolean isDecrypted() {
+        return info != null;
+    }
+
+    boolean isEncrypted() {
+        return encrypted != null;
+    }
+
+    PasswordInfo getInfo(EntryCipher cipher) throws Exception {
+        if (info == null) {
+            JSONObject json = new JSONObject(new String(cipher.decrypt(encrypted, getAssociatedData()), StandardCharsets.UTF_8));
+
+            PasswordInfo decryptedInfo = PasswordInfoBuilder.buildFromType(json);
+            if (decryptedInfo == null) {
+                throw new JSONException("Unable to create password info from JSON object");
+            }
+            if (!key.equals(decryptedInfo.key) || type != decryptedInfo.type) {
+                throw new AuthenticationFailedException();
+            }
+            decryptedInfo.appID = appID;
+
+            unknownFields = extractUnknownFields(decryptedInfo, json);
+            info = decryptedInfo;
+        }
+        return info;
+    }
+
+    EncryptedContainer getEncrypted(EntryCipher cipher) throws Exception {
+        if (encrypted == null) {
+            encrypted = cipher.encrypt(toJson().toString().getBytes(StandardCharsets.UTF_8), getAssociatedData());
+        }
+        return encrypted;
+    }
+
+    /**
+     * Application ID and key of the entry, each preceded by its length so that different pairs can't give
+     * the same bytes.
+     */
+    private byte[] getAssociatedData() {
+        byte[] appIDBytes = appID.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + appIDBytes.length + 4 + keyBytes.length)
+                .putInt(appIDBytes.length).put(appIDBytes)
+                .putInt(keyBytes.length).put(keyBytes)
+                .array();
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject json = info.asJsonObject();
+        if (json == null) {
+            throw new JSONException("Unable to create JSON object from password info");
+        }
+
+        if (unknownFields != null) {
+            Iterator<String> it = unknownFields.keys();
+            while (it.hasNext()) {
+                String field = it.next();
+                json.put(field, unknownFields.get(field));
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Returns whatever the typed password info doesn't hold, or null.
+     */
+    private static JSONObject extractUnknownFields(PasswordInfo info, JSONObject json) throws JSONException {
+        JSONObject knownFields = info.asJsonObject();
+        if (knownFields == null) {
+            throw new JSONException("Unable to create JSON object from password info");
+        }
+
+        JSONObject unknownFields = null;
+        Iterator<String> it = json.keys();
+        while (it.hasNext()) {
+            String field = it.next();
+            if (!knownFields.has(field)) {
+                if (unknownFields == null) {
+                    unknownFields = new JSONObject();
+                }
+                unknownFields.put(field, json.get(field));
+            }
+        }
+        return unknownFields;
+    }
+}
@@ -0,0 +1,20 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONObject;
+
+public class PasswordGetAllInfoOptions {
+    // Only returns the key, type, display name and app ID of password info, without decrypting them
+    public boolean metadataOnly = false;
+
+    public PasswordGetAllInfoOptions() {
+    }
+
+    public static PasswordGetAllInfoOptions fromJsonObject(JSONObject jsonObject) throws Exception {
+        PasswordGetAllInfoOptions options = new PasswordGetAllInfoOptions();
+
+        if (jsonObject.has("metadataOnly"))
+            options.metadataOnly = jsonObject.getBoolean("metadataOnly");
+
+        return options;
+    }
+}
@@ -0,0 +1,43 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONObject;
+
+public class PasswordGetPageOptions {
+    // Cursor returned with the previous page, null for the first page
+    public String cursor = null;
+    // Maximum number of password info in the page
+    public int pageSize = 30;
+    // Only password info of this type are returned, if set
+    public PasswordType type = null;
+    // Only password info of this application are returned, if set
+    public String appID = null;
+    // Only returns the key, type, display name and app ID of password info, without decrypting them
+    public boolean metadataOnly = false;
+
+    public PasswordGetPageOptions() {
+    }
+
+    public static PasswordGetPageOptions fromJsonObject(JSONObject jsonObject) throws Exception {
+        PasswordGetPageOptions options = new PasswordGetPageOptions();
+
+        if (jsonObject.has("cursor") && !jsonObject.isNull("cursor"))
+            options.cursor = jsonObject.getString("cursor");
+
+        if (jsonObject.has("pageSize"))
+            options.pageSize = jsonObject.getInt("pageSize");
+
+        if (jsonObject.has("type"))
+            options.type = PasswordType.fromValue(jsonObject.getInt("type"));
+
+        if (jsonObject.has("appID"))
+            options.appID = jsonObject.getString("appID");
+
+        if (jsonObject.has("metadataOnly"))
+            options.metadataOnly = jsonObject.getBoolean("metadataOnly");
+
+        if (options.pageSize <= 0)
+            throw new Exception("Invalid page size " + options.pageSize);
+
+        return options;
+    }
+}
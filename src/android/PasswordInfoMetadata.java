@@ -0,0 +1,31 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Non secret fields of a password info, read from the database index without decrypting the password info.
+ * Used to list password info, secrets are then fetched one by one.
+ */
+public class PasswordInfoMetadata {
+    public final String key;
+    public final PasswordType type;
+    public final String displayName;
+    public final String appID;
+
+    PasswordInfoMetadata(String key, PasswordType type, String displayName, String appID) {
+        this.key = key;
+        this.type = type;
+        this.displayName = displayName;
+        this.appID = appID;
+    }
+
+    public JSONObject asJsonObject() throws JSONException {
+        JSONObject jsonObj = new JSONObject();
+        jsonObj.put("key", key);
+        jsonObj.put("type", type.mValue);
+        jsonObj.put("displayName", displayName);
+        jsonObj.put("appID", appID);
+        return jsonObj;
+    }
+}
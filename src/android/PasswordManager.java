@@ -12,23 +12,42 @@ import org.elastos.essentials.plugins.passwordmanager.dialogs.MasterPasswordCrea
 import org.elastos.essentials.plugins.passwordmanager.dialogs.MasterPasswordPrompter;
 import org.elastos.essentials.plugins.passwordmanager.passwordinfo.PasswordInfo;
 import org.elastos.essentials.plugins.fingerprint.FingerPrintAuthHelper;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Random;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -37,6 +56,14 @@ import javax.crypto.spec.SecretKeySpec;
  * Database format is a plain JSON file, not mysql, why? Because we want to ensure unicity when changing the
  * master password (and in a simple way). The JSON file is then re-encrypted at once. It also better matches the
  * custom password info data that we store, instead of storing JSON strings in a mysql table.
+ *
+ * To avoid rewriting the whole database for every single change, password info changes are appended as
+ * individually encrypted records to a journal file stored next to the database snapshot. The journal is replayed
+ * over the snapshot when the database is unlocked, and folded into a new snapshot once it grows too long.
+ *
+ * The database content (snapshot and journal) is encrypted with a random data key. Only this data key is encrypted
+ * with a key derived from the master password, and saved in its own file. Changing the master password then
+ * only requires to re-encrypt the data key, whatever the database size.
  */
 public class PasswordManager {
     private static final String LOG_TAG = "PWDManager";
@@ -46,14 +73,47 @@ public class PasswordManager {
 
     private static final String PREF_KEY_UNLOCK_MODE = "unlockmode";
     private static final String PREF_KEY_APPS_PASSWORD_STRATEGY = "appspasswordstrategy";
+    // Saved in the global preferences, not per DID: the calibration measures this device
+    private static final String PREF_KEY_KDF_ITERATIONS = "kdfiterations";
+    // config.xml preference
+    private static final String PREF_SHARDED_STORAGE = "PasswordManagerShardedStorage";
+
+    // Number of journal records after which the journal is folded into a new full database snapshot
+    private static final int MAX_JOURNAL_RECORDS = 200;
+    // Size in bytes of the AES key used to encrypt the database content
+    private static final int DATA_KEY_SIZE = 32;
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_SIZE_BITS = 128;
+    // Time the master key derivation should take on this device. The PBKDF2 iteration count is calibrated for it.
+    private static final long KDF_TARGET_DURATION_MS = 250;
+    private static final int KDF_CALIBRATION_ITERATIONS = 10000;
+    private static final int KDF_MAX_ITERATIONS = 2000000;
+    // Changes made within this delay are saved together
+    private static final long SAVE_DEBOUNCE_DELAY_MS = 100;
+    // Changes that could not be saved are saved again after this delay
+    private static final long SAVE_RETRY_DELAY_MS = 5000;
+    // Unlocked databases are locked again after this delay
+    private static final long SESSION_DURATION_MS = 60 * 60 * 1000L;
+    private static final int CRYPTO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final String CRYPTO_THREAD_NAME = "PasswordManagerCrypto";
+    // Below this number of entries per thread, entries are encrypted or decrypted on the calling thread
+    private static final int MIN_ENTRIES_PER_CRYPTO_TASK = 16;
 
     private Activity activity;
     private final CordovaPlugin cordovaPlugin;
     private static PasswordManager instance;
-    private HashMap<String, PasswordDatabaseInfo> databasesInfo = new HashMap<>();
+    // Accessed from the plugin, save and crypto threads
+    private final ConcurrentHashMap<String, PasswordDatabaseInfo> databasesInfo = new ConcurrentHashMap<>();
     private String did = null;
     private MasterPasswordPrompter.Builder activeMasterPasswordPrompt = null;
     private FingerPrintAuthHelper fingerPrintAuthHelper = null;
+    // Saves database changes in background, one at a time
+    private final ScheduledThreadPoolExecutor saveExecutor = new ScheduledThreadPoolExecutor(1);
+    // Encrypts and decrypts password entries on all cores, and derives new master keys off the UI thread
+    private final ExecutorService cryptoExecutor = Executors.newFixedThreadPool(CRYPTO_THREADS, runnable -> new Thread(runnable, CRYPTO_THREAD_NAME));
+    // Notified of all database changes, in version order
+    private final ArrayList<OnDatabaseChangedListener> changeListeners = new ArrayList<>();
+    private long changesVersion = 0;
 
     private interface BasePasswordManagerListener {
         void onCancel();
@@ -64,7 +124,7 @@ public class PasswordManager {
         void onDatabaseLoaded();
     }
 
-    private interface OnDatabaseSavedListener extends BasePasswordManagerListener {
+    interface OnDatabaseSavedListener extends BasePasswordManagerListener {
         void onDatabaseSaved();
     }
 
@@ -88,6 +148,20 @@ public class PasswordManager {
         void onAllPasswordInfoRetrieved(ArrayList<PasswordInfo> info);
     }
 
+    public interface OnPasswordInfoPageRetrievedListener extends BasePasswordManagerListener {
+        /**
+         * @param nextCursor Cursor to get the next page, or null if this is the last page.
+         */
+        void onPasswordInfoPageRetrieved(ArrayList<PasswordInfo> infos, String nextCursor);
+    }
+
+    public interface OnPasswordInfoMetadataPageRetrievedListener extends BasePasswordManagerListener {
+        /**
+         * @param nextCursor Cursor to get the next page, or null if this is the last page.
+         */
+        void onPasswordInfoMetadataPageRetrieved(ArrayList<PasswordInfoMetadata> metadata, String nextCursor);
+    }
+
     public interface OnPasswordInfoDeletedListener extends BasePasswordManagerListener {
         void onPasswordInfoDeleted();
     }
@@ -96,6 +170,10 @@ public class PasswordManager {
         void onPasswordInfoSet();
     }
 
+    public interface OnDatabaseChangedListener {
+        void onDatabaseChanged(PasswordChangeEvent event);
+    }
+
     public PasswordManager(CordovaPlugin cordovaPlugin) {
         this.cordovaPlugin = cordovaPlugin;
         this.activity = cordovaPlugin.cordova.getActivity();
@@ -109,6 +187,13 @@ public class PasswordManager {
     }
 
     public static void Destroy() {
+        if (PasswordManager.instance != null) {
+            PasswordManager.instance.flushAllPendingChanges();
+            // Pending changes are saved: drop the session expiries and save retries still waiting
+            PasswordManager.instance.saveExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            PasswordManager.instance.saveExecutor.shutdown();
+            PasswordManager.instance.cryptoExecutor.shutdown();
+        }
         PasswordManager.instance = null;
     }
 
@@ -119,8 +204,71 @@ public class PasswordManager {
      *
      * Password info could fail to be saved in case user cancels the master password creation or enters
      * a wrong master password then cancels.
+     *
+     * Depending on the options durability, the listener is called once the change is saved to disk, or as soon
+     * as it's applied in memory.
+     */
+    public void setPasswordInfo(PasswordInfo info, String did, String appID, PasswordSetInfoOptions options, OnPasswordInfoSetListener listener) throws Exception {
+        checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
+            @Override
+            public void onMasterPasswordCreated() {
+                loadDatabase(did, new OnDatabaseLoadedListener() {
+                    @Override
+                    public void onDatabaseLoaded() {
+                        try {
+                            setPasswordInfoReal(info, did, appID, options.durability, new OnDatabaseSavedListener() {
+                                @Override
+                                public void onDatabaseSaved() {
+                                    listener.onPasswordInfoSet();
+                                }
+
+                                @Override
+                                public void onCancel() {
+                                    listener.onCancel();
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    listener.onError(error);
+                                }
+                            });
+                        }
+                        catch (Exception e) {
+                            listener.onError(e.getMessage());
+                        }
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        listener.onCancel();
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        listener.onError(error);
+                    }
+                }, false);
+            }
+
+            @Override
+            public void onCancel() {
+                listener.onCancel();
+            }
+
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        });
+    }
+
+    /**
+     * Saves or updates several password information at once, as setPasswordInfo() would.
+     *
+     * All password info are applied together and saved with a single write, as a single journal record that is
+     * either entirely replayed or not at all. Nothing is changed if any of the password info is invalid.
      */
-    public void setPasswordInfo(PasswordInfo info, String did, String appID, OnPasswordInfoSetListener listener) throws Exception {
+    public void setPasswordInfos(ArrayList<PasswordInfo> infos, String did, String appID, PasswordSetInfoOptions options, OnPasswordInfoSetListener listener) throws Exception {
         checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
             @Override
             public void onMasterPasswordCreated() {
@@ -128,8 +276,22 @@ public class PasswordManager {
                     @Override
                     public void onDatabaseLoaded() {
                         try {
-                            setPasswordInfoReal(info, did, appID);
-                            listener.onPasswordInfoSet();
+                            setPasswordInfosReal(infos, did, appID, options.durability, new OnDatabaseSavedListener() {
+                                @Override
+                                public void onDatabaseSaved() {
+                                    listener.onPasswordInfoSet();
+                                }
+
+                                @Override
+                                public void onCancel() {
+                                    listener.onCancel();
+                                }
+
+                                @Override
+                                public void onError(String error) {
+                                    listener.onError(error);
+                                }
+                            });
                         }
                         catch (Exception e) {
                             listener.onError(e.getMessage());
@@ -167,10 +329,11 @@ public class PasswordManager {
      * The password manager application is able to access information from all applications.
      *
      * @param key Unique key identifying the password info to retrieve.
+     * @param targetAppID Application that owns the password info, only used by the password manager application.
      *
      * @returns The password info, or null if nothing was found.
      */
-    public void getPasswordInfo(String key, String did, String appID, PasswordGetInfoOptions options, OnPasswordInfoRetrievedListener listener) throws Exception {
+    public void getPasswordInfo(String key, String did, String appID, String targetAppID, PasswordGetInfoOptions options, OnPasswordInfoRetrievedListener listener) throws Exception {
         checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
             @Override
             public void onMasterPasswordCreated() {
@@ -184,7 +347,7 @@ public class PasswordManager {
                     @Override
                     public void onDatabaseLoaded() {
                         try {
-                            PasswordInfo info = getPasswordInfoReal(key, did, appID);
+                            PasswordInfo info = getPasswordInfoReal(key, did, targetAppID);
                             listener.onPasswordInfoRetrieved(info);
                         }
                         catch (Exception e) {
@@ -216,6 +379,64 @@ public class PasswordManager {
         });
     }
 
+    /**
+     * Using key identifiers, returns several previously saved password info at once, decrypted in parallel.
+     * Otherwise behaves like getPasswordInfo().
+     *
+     * A regular application can only access password info that it created itself.
+     * The password manager application is able to access information from all applications.
+     *
+     * @param keys Unique keys identifying the password info to retrieve.
+     * @param targetAppID Application that owns the password info, only used by the password manager application.
+     *
+     * @returns The password info, in the same order as the keys, with null for keys that were not found.
+     */
+    public void getPasswordInfos(ArrayList<String> keys, String did, String appID, String targetAppID, PasswordGetInfoOptions options, OnAllPasswordInfoRetrievedListener listener) throws Exception {
+        checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
+            @Override
+            public void onMasterPasswordCreated() {
+                // In case caller doesn't want to show the password prompt if the database is locked, we return a cancellation exception.
+                if (!isDatabaseLoaded(did) && !options.promptPasswordIfLocked) {
+                    listener.onCancel();
+                    return;
+                }
+
+                loadDatabase(did, new OnDatabaseLoadedListener() {
+                    @Override
+                    public void onDatabaseLoaded() {
+                        try {
+                            ArrayList<PasswordInfo> infos = getPasswordInfosReal(keys, did, targetAppID);
+                            listener.onAllPasswordInfoRetrieved(infos);
+                        }
+                        catch (Exception e) {
+                            listener.onError(e.getMessage());
+                        }
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        listener.onCancel();
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        listener.onError(error);
+                    }
+                }, false, options.forceMasterPasswordPrompt, false);
+            }
+
+            @Override
+            public void onCancel() {
+                listener.onCancel();
+            }
+
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        });
+    }
+
     /**
      * Returns the whole list of password information contained in the password database.
      *
@@ -264,24 +485,37 @@ public class PasswordManager {
     }
 
     /**
-     * Deletes an existing password information from the secure database.
-     *
-     * A regular application can only delete password info that it created itself.
-     * The password manager application is able to delete information from all applications.
+     * Same as getPasswordInfoPage(), but only returns the key, type, display name and app ID of the password
+     * info. They are read from the database index, without decrypting any password info, so that lists can be
+     * displayed without secrets leaving the database. Secrets are then fetched one by one with getPasswordInfo().
      *
-     * @param key Unique identifier for the password info to delete.
+     * Only the password manager application is allowed to call this API.
      */
-    public void deletePasswordInfo(String key, String did, String appID, String targetAppID, OnPasswordInfoDeletedListener listener) throws Exception {
-        loadDatabase(did, new OnDatabaseLoadedListener() {
+    public void getPasswordInfoMetadataPage(String did, String appID, PasswordGetPageOptions options, OnPasswordInfoMetadataPageRetrievedListener listener) throws Exception {
+        checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
             @Override
-            public void onDatabaseLoaded() {
-                try {
-                    deletePasswordInfoReal(key, did, targetAppID);
-                    listener.onPasswordInfoDeleted();
-                }
-                catch (Exception e) {
-                    listener.onError(e.getMessage());
-                }
+            public void onMasterPasswordCreated() {
+                loadDatabase(did, new OnDatabaseLoadedListener() {
+                    @Override
+                    public void onDatabaseLoaded() {
+                        try {
+                            getPasswordInfoMetadataPageReal(did, options, listener);
+                        }
+                        catch (Exception e) {
+                            listener.onError(e.getMessage());
+                        }
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        listener.onCancel();
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        listener.onError(error);
+                    }
+                }, false);
             }
 
             @Override
@@ -293,72 +527,88 @@ public class PasswordManager {
             public void onError(String error) {
                 listener.onError(error);
             }
-        }, false);
+        });
     }
 
     /**
-     * Convenience method to generate a random password based on given criteria (options).
-     * Used by applications to quickly generate new user passwords.
+     * Returns one page of the password information contained in the password database, in database order,
+     * optionally filtered by type and application. Only the password info of the requested page are
+     * decrypted and returned.
      *
-     * @param options unused for now
+     * Only the password manager application is allowed to call this API.
      */
-    public String generateRandomPassword(PasswordCreationOptions options) {
-        int sizeOfRandomString = 8;
+    public void getPasswordInfoPage(String did, String appID, PasswordGetPageOptions options, OnPasswordInfoPageRetrievedListener listener) throws Exception {
+        checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
+            @Override
+            public void onMasterPasswordCreated() {
+                loadDatabase(did, new OnDatabaseLoadedListener() {
+                    @Override
+                    public void onDatabaseLoaded() {
+                        try {
+                            getPasswordInfoPageReal(did, options, listener);
+                        }
+                        catch (Exception e) {
+                            listener.onError(e.getMessage());
+                        }
+                    }
 
-        String allowedCharacters = "";
-        allowedCharacters += "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-        allowedCharacters += "abcdefghijklmnopqrstuvwxyz";
-        allowedCharacters += "0123456789";
-        allowedCharacters += "!@#$%^&*()_-+=<>?/{}~|";
+                    @Override
+                    public void onCancel() {
+                        listener.onCancel();
+                    }
 
-        final Random random = new Random();
-        final StringBuilder sb = new StringBuilder(sizeOfRandomString);
+                    @Override
+                    public void onError(String error) {
+                        listener.onError(error);
+                    }
+                }, false);
+            }
 
-        for(int i=sb.length();i < sizeOfRandomString;++i){
-            sb.append(allowedCharacters.charAt(random.nextInt(allowedCharacters.length())));
-        }
+            @Override
+            public void onCancel() {
+                listener.onCancel();
+            }
 
-        return sb.toString();
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        });
     }
 
     /**
-     * Sets the new master password for the current DID session. This master password locks the whole
-     * database of password information.
-     *
-     * In case of a master password change, the password info database is re-encrypted with this new password.
+     * Returns the password information whose searchable fields (display name, account identifier, wifi SSID,
+     * bank name) contain all the words of the query, sorted by display name. Words shorter than 3 characters
+     * only match the beginning of words.
      *
      * Only the password manager application is allowed to call this API.
      */
-    public void changeMasterPassword(String did, String appID, OnMasterPasswordChangeListener listener) throws Exception {
-        loadDatabase(did, new OnDatabaseLoadedListener() {
+    public void searchPasswordInfo(String query, String did, String appID, PasswordSearchOptions options, OnAllPasswordInfoRetrievedListener listener) throws Exception {
+        checkMasterPasswordCreationRequired(did, new OnMasterPasswordCreationListener() {
             @Override
-            public void onDatabaseLoaded() {
-                // No database exists. Start the master password creation flow
-                new MasterPasswordCreator.Builder(activity, PasswordManager.this)
-                    .setOnNextClickedListener(password -> {
-                        // Master password was provided and confirmed. Now we can use it.
-
+            public void onMasterPasswordCreated() {
+                loadDatabase(did, new OnDatabaseLoadedListener() {
+                    @Override
+                    public void onDatabaseLoaded() {
                         try {
-                            PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
-
-                            // Changing the master password means re-encrypting the database with a different password
-                            encryptAndSaveDatabase(did, password);
-
-                            // Remember the new password locally
-                            dbInfo.activeMasterPassword = password;
-
-                            // Disable biometric auth to force re-activating it, as the password has changed.
-                            setBiometricAuthEnabled(did, false);
-
-                            listener.onMasterPasswordChanged();
+                            ArrayList<PasswordInfo> infos = searchPasswordInfoReal(query, did, options);
+                            listener.onAllPasswordInfoRetrieved(infos);
                         }
                         catch (Exception e) {
                             listener.onError(e.getMessage());
                         }
-                    })
-                    .setOnCancelClickedListener(listener::onCancel)
-                    .setOnErrorListener(listener::onError)
-                    .prompt();
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        listener.onCancel();
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        listener.onError(error);
+                    }
+                }, false);
             }
 
             @Override
@@ -370,30 +620,232 @@ public class PasswordManager {
             public void onError(String error) {
                 listener.onError(error);
             }
-        }, false);
+        });
     }
 
     /**
-     * If the master password has ben unlocked earlier, all passwords are accessible for a while.
-     * This API re-locks the passwords database and further requests from applications to this password
-     * manager will require user to provide his master password again.
+     * Deletes an existing password information from the secure database.
+     *
+     * A regular application can only delete password info that it created itself.
+     * The password manager application is able to delete information from all applications.
+     *
+     * @param key Unique identifier for the password info to delete.
      */
-    public void lockMasterPassword(String did) throws Exception {
-        lockDatabase(did);
-    }
+    public void deletePasswordInfo(String key, String did, String appID, String targetAppID, OnPasswordInfoDeletedListener listener) throws Exception {
+        loadDatabase(did, new OnDatabaseLoadedListener() {
+            @Override
+            public void onDatabaseLoaded() {
+                try {
+                    deletePasswordInfoReal(key, did, targetAppID, new OnDatabaseSavedListener() {
+                        @Override
+                        public void onDatabaseSaved() {
+                            listener.onPasswordInfoDeleted();
+                        }
+
+                        @Override
+                        public void onCancel() {
+                            listener.onCancel();
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            listener.onError(error);
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    listener.onError(e.getMessage());
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                listener.onCancel();
+            }
+
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        }, false);
+    }
+
+    /**
+     * Deletes several existing password information at once, with a single save. Otherwise behaves like
+     * deletePasswordInfo().
+     *
+     * A regular application can only delete password info that it created itself.
+     * The password manager application is able to delete information from all applications.
+     *
+     * @param keys Unique identifiers for the password info to delete.
+     */
+    public void deletePasswordInfos(ArrayList<String> keys, String did, String appID, String targetAppID, OnPasswordInfoDeletedListener listener) throws Exception {
+        loadDatabase(did, new OnDatabaseLoadedListener() {
+            @Override
+            public void onDatabaseLoaded() {
+                try {
+                    deletePasswordInfosReal(keys, did, targetAppID, new OnDatabaseSavedListener() {
+                        @Override
+                        public void onDatabaseSaved() {
+                            listener.onPasswordInfoDeleted();
+                        }
+
+                        @Override
+                        public void onCancel() {
+                            listener.onCancel();
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            listener.onError(error);
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    listener.onError(e.getMessage());
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                listener.onCancel();
+            }
+
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        }, false);
+    }
+
+    /**
+     * Convenience method to generate a random password based on given criteria (options).
+     * Used by applications to quickly generate new user passwords.
+     *
+     * @param options unused for now
+     */
+    public String generateRandomPassword(PasswordCreationOptions options) {
+        int sizeOfRandomString = 8;
+
+        String allowedCharacters = "";
+        allowedCharacters += "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        allowedCharacters += "abcdefghijklmnopqrstuvwxyz";
+        allowedCharacters += "0123456789";
+        allowedCharacters += "!@#$%^&*()_-+=<>?/{}~|";
+
+        final Random random = new Random();
+        final StringBuilder sb = new StringBuilder(sizeOfRandomString);
+
+        for(int i=sb.length();i < sizeOfRandomString;++i){
+            sb.append(allowedCharacters.charAt(random.nextInt(allowedCharacters.length())));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Sets the new master password for the current DID session. This master password locks the whole
+     * database of password information.
+     *
+     * In case of a master password change, the password info database key is re-encrypted with this new password.
+     *
+     * Only the password manager application is allowed to call this API.
+     */
+    public void changeMasterPassword(String did, String appID, OnMasterPasswordChangeListener listener) throws Exception {
+        loadDatabase(did, new OnDatabaseLoadedListener() {
+            @Override
+            public void onDatabaseLoaded() {
+                // No database exists. Start the master password creation flow
+                new MasterPasswordCreator.Builder(activity, PasswordManager.this)
+                    .setOnNextClickedListener(password -> {
+                        // Master password was provided and confirmed. Now we can use it.
+                        runWithNewMasterPassword(password, newPassword -> {
+                            PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+
+                            // The database content is encrypted with the data key, so changing the master password
+                            // only means re-encrypting this data key with the new password.
+                            PasswordDatabaseInfo.MasterKey masterKey = deriveNewMasterKey(newPassword);
+                            synchronized (dbInfo) {
+                                saveDataKey(did, dbInfo.dataKey, masterKey);
+                                dbInfo.masterKey = masterKey;
+
+                                // Remember the new password locally
+                                dbInfo.setActiveMasterPassword(newPassword);
+                            }
+
+                            // Disable biometric auth to force re-activating it, as the password has changed.
+                            setBiometricAuthEnabled(did, false);
+
+                            listener.onMasterPasswordChanged();
+                        }, listener);
+                    })
+                    .setOnCancelClickedListener(listener::onCancel)
+                    .setOnErrorListener(listener::onError)
+                    .prompt();
+            }
+
+            @Override
+            public void onCancel() {
+                listener.onCancel();
+            }
+
+            @Override
+            public void onError(String error) {
+                listener.onError(error);
+            }
+        }, false);
+    }
+
+    /**
+     * If the master password has ben unlocked earlier, all passwords are accessible for a while.
+     * This API re-locks the passwords database and further requests from applications to this password
+     * manager will require user to provide his master password again.
+     */
+    public void lockMasterPassword(String did) throws Exception {
+        Exception error = lockDatabase(did, false);
+        if (error != null) {
+            throw new Exception("The passwords database was not locked because its changes could not be saved: " + error.getMessage());
+        }
+    }
 
     /**
      * Deletes all password information for the active DID session. The encrypted passwords database
      * is deleted without any way to recover it.
      */
     public void deleteAll(String did) throws Exception {
-        // Lock currently opened database
-        lockDatabase(did);
+        // Lock currently opened database. Its unsaved changes don't matter as it's deleted.
+        lockDatabase(did, true);
 
         // Delete the permanent storage
         deleteDatabase(did);
     }
 
+    /**
+     * Registers a listener called after each password info change, and each time the database is locked or
+     * unlocked. Listeners are called on the thread that made the change, and must return quickly.
+     */
+    public void addDatabaseChangedListener(OnDatabaseChangedListener listener) {
+        synchronized (changeListeners) {
+            if (!changeListeners.contains(listener))
+                changeListeners.add(listener);
+        }
+    }
+
+    public void removeDatabaseChangedListener(OnDatabaseChangedListener listener) {
+        synchronized (changeListeners) {
+            changeListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Version of the last change event, 0 if nothing changed yet.
+     */
+    public long getChangesVersion() {
+        synchronized (changeListeners) {
+            return changesVersion;
+        }
+    }
+
     /**
      * Sets the unlock strategy for the password info database. By default, once the master password
      * if provided once by the user, the whole database is unlocked for a while, until elastOS exits,
@@ -411,7 +863,10 @@ public class PasswordManager {
 
         // if the mode becomes UNLOCK_EVERY_TIME, we lock the database
         if (getUnlockMode(did) != PasswordUnlockMode.UNLOCK_EVERY_TIME && unlockMode == PasswordUnlockMode.UNLOCK_EVERY_TIME) {
-            lockDatabase(did);
+            Exception error = lockDatabase(did, false);
+            if (error != null) {
+                throw new Exception("The passwords database was not locked because its changes could not be saved: " + error.getMessage());
+            }
         }
     }
 
@@ -430,7 +885,9 @@ public class PasswordManager {
                 listener.onDatabaseLoaded();
             } else {
                 if (sessionExpired(did)) {
-                    lockDatabase(did);
+                    // If its changes can't be saved, the database stays unlocked and the reload after the
+                    // prompt reports the error.
+                    lockDatabase(did, false);
                 }
 
                 // Master password is locked - prompt it to user
@@ -440,70 +897,86 @@ public class PasswordManager {
                     activeMasterPasswordPrompt = null;
                 }
 
+                long promptStartTime = System.nanoTime();
+                PasswordMetrics.increment(PasswordMetrics.Counter.PROMPTS);
                 activeMasterPasswordPrompt = new MasterPasswordPrompter.Builder(cordovaPlugin, did, this)
                         .setOnNextClickedListener((password, shouldSavePasswordToBiometric) -> {
                             activeMasterPasswordPrompt = null;
-                            try {
-                                // Force loading the database even if it's already loaded. That's the way to check if the
-                                // possibly forced password input is right or not. Reloading the database will not break
-                                // anything.
-                                loadEncryptedDatabase(did, password);
-
-                                if (isDatabaseLoaded(did)) {
-                                    // User chose to enable biometric authentication (was not enabled before). So we save the
-                                    // master password to the biometric crypto space.
-                                    if (shouldSavePasswordToBiometric) {
-                                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                                            activity.runOnUiThread(() -> {
-                                                fingerPrintAuthHelper = new FingerPrintAuthHelper(this.cordovaPlugin, did);
-                                                fingerPrintAuthHelper.init();
-                                                fingerPrintAuthHelper.authenticateAndSavePassword(MASTER_PASSWORD_BIOMETRIC_KEY, password, new FingerPrintAuthHelper.AuthenticationCallback() {
-                                                    @Override
-                                                    public void onSuccess(String password) {
-                                                        // Save user's choice to use biometric auth method next time
-                                                        setBiometricAuthEnabled(did, true);
-
-                                                        listener.onDatabaseLoaded();
-                                                    }
-
-                                                    @Override
-                                                    public void onFailure(String message) {
-                                                        Log.e(LOG_TAG, "Biometric authentication failed to initiate");
-                                                        Log.e(LOG_TAG, message);
-
-                                                        // In case of authentication failed, try again
-                                                        if (message.contains("Authentication failed")) {
-                                                            setBiometricAuthEnabled(did, false);
+                            PasswordMetrics.record(PasswordMetrics.Phase.MASTER_PASSWORD_PROMPT, promptStartTime);
+                            // Deriving the master key takes a while: keep it off the UI thread. The prompter wipes
+                            // the password when this listener returns, so the unlock works on its own copy.
+                            char[] passwordCopy = password.clone();
+                            cryptoExecutor.execute(() -> {
+                                try {
+                                    // Force loading the database even if it's already loaded. That's the way to check if the
+                                    // possibly forced password input is right or not. Reloading the database will not break
+                                    // anything.
+                                    loadEncryptedDatabase(did, passwordCopy);
+
+                                    if (isDatabaseLoaded(did)) {
+                                        // User chose to enable biometric authentication (was not enabled before). So we save the
+                                        // master password to the biometric crypto space.
+                                        if (shouldSavePasswordToBiometric) {
+                                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                                                // The biometric crypto space only accepts strings: this copy of the master
+                                                // password can't be wiped (see SecretBuffer).
+                                                String biometricPassword = new String(passwordCopy);
+                                                activity.runOnUiThread(() -> {
+                                                    fingerPrintAuthHelper = new FingerPrintAuthHelper(this.cordovaPlugin, did);
+                                                    fingerPrintAuthHelper.init();
+                                                    fingerPrintAuthHelper.authenticateAndSavePassword(MASTER_PASSWORD_BIOMETRIC_KEY, biometricPassword, new FingerPrintAuthHelper.AuthenticationCallback() {
+                                                        @Override
+                                                        public void onSuccess(String password) {
+                                                            // Save user's choice to use biometric auth method next time
+                                                            setBiometricAuthEnabled(did, true);
+
+                                                            listener.onDatabaseLoaded();
                                                         }
 
-                                                        // Biometric save failed, but we still could open the database, so we return a success here.
-                                                        // Though, we don't save user's choice to enable biometric auth.
-                                                        listener.onDatabaseLoaded();
-                                                    }
+                                                        @Override
+                                                        public void onFailure(String message) {
+                                                            Log.e(LOG_TAG, "Biometric authentication failed to initiate");
+                                                            Log.e(LOG_TAG, message);
+
+                                                            // In case of authentication failed, try again
+                                                            if (message.contains("Authentication failed")) {
+                                                                setBiometricAuthEnabled(did, false);
+                                                            }
+
+                                                            // Biometric save failed, but we still could open the database, so we return a success here.
+                                                            // Though, we don't save user's choice to enable biometric auth.
+                                                            listener.onDatabaseLoaded();
+                                                        }
+                                                    });
                                                 });
-                                            });
+                                            }
+                                        } else {
+                                            listener.onDatabaseLoaded();
                                         }
+                                    } else
+                                        listener.onError("Unknown error while trying to load the passwords database");
+                                } catch (Exception e) {
+                                    // In case of wrong password exception, try again
+                                    if (e instanceof AuthenticationFailedException) {
+                                        activity.runOnUiThread(() -> loadDatabase(did, listener, true, forcePasswordPrompt, false));
                                     } else {
-                                        listener.onDatabaseLoaded();
+                                        // Other exceptions are passed raw
+                                        listener.onError(e.getMessage());
                                     }
-                                } else
-                                    listener.onError("Unknown error while trying to load the passwords database");
-                            } catch (Exception e) {
-                                // In case of wrong password exception, try again
-                                if (e.getMessage().contains("BAD_DECRYPT")) {
-                                    loadDatabase(did, listener, true, forcePasswordPrompt, false);
-                                } else {
-                                    // Other exceptions are passed raw
-                                    listener.onError(e.getMessage());
                                 }
-                            }
+                                finally {
+                                    Arrays.fill(passwordCopy, '\0');
+                                }
+                            });
                         })
                         .setOnCancelClickedListener(() -> {
                             activeMasterPasswordPrompt = null;
+                            PasswordMetrics.record(PasswordMetrics.Phase.MASTER_PASSWORD_PROMPT, promptStartTime);
                             listener.onCancel();
                         })
                         .setOnErrorListener((err) -> {
                             activeMasterPasswordPrompt = null;
+                            PasswordMetrics.record(PasswordMetrics.Phase.MASTER_PASSWORD_PROMPT, promptStartTime);
                             // After adding a new fingerprint, a KeyPermanentlyInvalidatedException occurs.
                             if (err.contains("Key Permanently Invalidated")) {
                                 setBiometricAuthEnabled(did,false);
@@ -536,25 +1009,131 @@ public class PasswordManager {
             return true;
 
         // Last opened more than 1 hour ago? -> Expired
-        long oneHourMs = (60*60*1000L);
-        return dbInfo.openingTime.getTime() < (new Date().getTime() - oneHourMs);
+        return dbInfo.openingTime.getTime() < (new Date().getTime() - SESSION_DURATION_MS);
+    }
+
+    /**
+     * Locks the database when its session expires, so that change listeners get the lock event at that time
+     * instead of on the next call.
+     */
+    private void scheduleSessionExpiry(String did, PasswordDatabaseInfo dbInfo) {
+        scheduleSaveTask(() -> expireSession(did, dbInfo), SESSION_DURATION_MS);
+    }
+
+    private void expireSession(String did, PasswordDatabaseInfo dbInfo) {
+        if (lockDatabase(did, dbInfo, false) != null) {
+            // Changes not saved yet: try again along with their next save
+            scheduleSaveTask(() -> expireSession(did, dbInfo), SAVE_RETRY_DELAY_MS);
+        }
     }
 
     private boolean isDatabaseLoaded(String did) {
         return (databasesInfo.get(did) != null);
     }
 
-    private void lockDatabase(String did) {
+    private Exception lockDatabase(String did, boolean discardUnsavedChanges) {
         PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
-        if (dbInfo != null) {
-            dbInfo.lock();
-            databasesInfo.remove(did);
+        if (dbInfo == null)
+            return null;
+
+        return lockDatabase(did, dbInfo, discardUnsavedChanges);
+    }
+
+    /**
+     * Does nothing if this database info was already locked, or replaced by another unlock.
+     *
+     * Callers were told their changes were applied, so unless they are discarded, a database whose changes
+     * can't be saved is not locked: the save error is returned, and the save is retried later as usual.
+     */
+    private Exception lockDatabase(String did, PasswordDatabaseInfo dbInfo, boolean discardUnsavedChanges) {
+        ArrayList<OnDatabaseSavedListener> listeners;
+        Exception error;
+        // Pending changes must be saved while the data key is still available, and no change can be
+        // queued between this last save and the lock.
+        synchronized (dbInfo) {
+            if (databasesInfo.get(did) != dbInfo)
+                return null;
+
+            listeners = dbInfo.takePendingSaveListeners();
+            error = savePendingChanges(did, dbInfo);
+            if (error == null || discardUnsavedChanges) {
+                dbInfo.pendingJournalRecords.clear();
+                dbInfo.lock();
+                databasesInfo.remove(did, dbInfo);
+            }
+        }
+        notifyDatabaseSaved(listeners, error);
+        if (error != null && !discardUnsavedChanges) {
+            Log.e(LOG_TAG, "Password database kept unlocked until its changes are saved");
+            return error;
+        }
+        notifyDatabaseChanged(PasswordChangeEvent.Type.LOCK, null, null);
+        return null;
+    }
+
+    /**
+     * Changes must not be applied to a database locked by another thread since it was loaded for this call,
+     * as they could not be saved anymore.
+     */
+    private void checkDatabaseUnlocked(PasswordDatabaseInfo dbInfo) throws Exception {
+        if (dbInfo.dataKeySpec == null) {
+            throw new Exception("The passwords database was locked, please try again");
+        }
+    }
+
+    private void notifyDatabaseChanged(PasswordChangeEvent.Type type, String appID, String key) {
+        synchronized (changeListeners) {
+            PasswordChangeEvent event = new PasswordChangeEvent(type, ++changesVersion, appID, key);
+            for (OnDatabaseChangedListener listener : changeListeners) {
+                listener.onDatabaseChanged(event);
+            }
         }
     }
 
+    private String getDatabaseDir(String did) {
+        return activity.getFilesDir() + "/data/pwm/" + did;
+    }
+
     private String getDatabaseFilePath(String did) {
-        String dataDir = activity.getFilesDir() + "/data/pwm/" + did;
-        return dataDir + "/store.db";
+        return getDatabaseDir(did) + "/store.db";
+    }
+
+    private String getJournalFilePath(String did) {
+        return getDatabaseDir(did) + "/store.journal";
+    }
+
+    private String getDataKeyFilePath(String did) {
+        return getDatabaseDir(did) + "/store.key";
+    }
+
+    private String getShardsDir(String did) {
+        return getDatabaseDir(did) + "/shards";
+    }
+
+    private String getManifestFilePath(String did) {
+        return getShardsDir(did) + "/manifest.db";
+    }
+
+    /**
+     * Shard files are named after a hash of the application ID, as application IDs are not valid file names.
+     */
+    private String getShardFilePath(String did, String appID) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(appID.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return getShardsDir(did) + "/" + sb + ".db";
+    }
+
+    /**
+     * The sharded storage saves each application entries in its own file, so that accessing or modifying an
+     * application entries doesn't require to decrypt or save other applications entries. It's enabled with
+     * the PasswordManagerShardedStorage preference in the application config.xml. Existing databases are
+     * migrated the next time they are unlocked.
+     */
+    private boolean isShardedStorageEnabled() {
+        return cordovaPlugin.webView.getPreferences().getBoolean(PREF_SHARDED_STORAGE, false);
     }
 
     private void ensureDbPathExists(String dbPath) {
@@ -562,16 +1141,25 @@ public class PasswordManager {
     }
 
     private boolean databaseExists(String did) {
-        return new File(getDatabaseFilePath(did)).exists();
+        return new File(getDatabaseFilePath(did)).exists() || new File(getManifestFilePath(did)).exists();
     }
 
-    private void createEmptyDatabase(String did, String masterPassword) {
+    private void createEmptyDatabase(String did, char[] masterPassword) throws Exception {
         // No database exists yet. Return an empty database info.
         PasswordDatabaseInfo dbInfo = PasswordDatabaseInfo.createEmpty();
         databasesInfo.put(did, dbInfo);
 
         // Save the master password
-        dbInfo.activeMasterPassword = masterPassword;
+        dbInfo.setActiveMasterPassword(masterPassword);
+
+        // New databases get their own data key
+        dbInfo.setDataKey(generateDataKey());
+        dbInfo.entryCipher = createEntryCipher(dbInfo);
+        dbInfo.sharded = isShardedStorageEnabled();
+        dbInfo.masterKey = deriveNewMasterKey(masterPassword);
+        PasswordMetrics.increment(PasswordMetrics.Counter.UNLOCKS);
+        scheduleSessionExpiry(did, dbInfo);
+        notifyDatabaseChanged(PasswordChangeEvent.Type.UNLOCK, null, null);
     }
 
     private void deleteDatabase(String did) {
@@ -580,185 +1168,1102 @@ public class PasswordManager {
         if (dbFile.exists()) {
             dbFile.delete();
         }
+
+        try {
+            deleteJournal(did);
+        }
+        catch (IOException e) {
+            // Records encrypted with the deleted data key are never replayed
+            Log.w(LOG_TAG, e.getMessage());
+        }
+
+        File dataKeyFile = new File(getDataKeyFilePath(did));
+        if (dataKeyFile.exists()) {
+            dataKeyFile.delete();
+        }
+
+        File[] shardFiles = new File(getShardsDir(did)).listFiles();
+        if (shardFiles != null) {
+            for (File shardFile : shardFiles) {
+                shardFile.delete();
+            }
+        }
+    }
+
+    private void deleteJournal(String did) throws IOException {
+        File journalFile = new File(getJournalFilePath(did));
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Unable to delete the passwords database journal");
+        }
     }
 
     /**
      * Using user's master password, decrypt the passwords list from disk and load it into memory.
      */
-    private void loadEncryptedDatabase(String did, String masterPassword) throws Exception {
-        if (masterPassword == null || masterPassword.equals("")) {
+    private void loadEncryptedDatabase(String did, char[] masterPassword) throws Exception {
+        if (masterPassword == null || masterPassword.length == 0) {
             throw new Exception("Empty master password is not allowed");
         }
 
+        // The database may be reloaded while already unlocked. Its pending changes must be on disk first, and
+        // no change can be made to it until it's replaced. It's then locked, which wipes its secrets.
+        PasswordDatabaseInfo loadedDbInfo = databasesInfo.get(did);
+        if (loadedDbInfo != null) {
+            ArrayList<OnDatabaseSavedListener> listeners = null;
+            Exception error = null;
+            try {
+                synchronized (loadedDbInfo) {
+                    listeners = loadedDbInfo.takePendingSaveListeners();
+                    error = savePendingChanges(did, loadedDbInfo);
+                    if (error != null) {
+                        // Kept unlocked until its changes are saved
+                        throw error;
+                    }
+                    readEncryptedDatabase(did, masterPassword);
+                    loadedDbInfo.lock();
+                }
+            }
+            finally {
+                if (listeners != null) {
+                    notifyDatabaseSaved(listeners, error);
+                }
+            }
+            return;
+        }
+
+        readEncryptedDatabase(did, masterPassword);
+    }
+
+    private void readEncryptedDatabase(String did, char[] masterPassword) throws Exception {
         String dbPath = getDatabaseFilePath(did);
         ensureDbPathExists(dbPath);
 
         File file = new File(dbPath);
+        File manifestFile = new File(getManifestFilePath(did));
 
-        if (!file.exists()) {
+        if (!file.exists() && !manifestFile.exists()) {
             createEmptyDatabase(did, masterPassword);
         }
         else {
-            // Read the saved serialized hashmap as object
-            FileInputStream fis = new FileInputStream(dbPath);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            HashMap<String, byte[]> map = (HashMap<String, byte[]>) ois.readObject();
-
             // Now that we've loaded the file, try to decrypt it
-            byte[] decrypted = null;
+            byte[] dataKey = null;
             try {
-                decrypted = decryptData(map, masterPassword);
+                // Once written, the sharded storage manifest replaces the database file
+                boolean sharded = manifestFile.exists();
+                ArrayList<EncryptedContainer> containers = EncryptedContainer.readAll(sharded ? manifestFile : file);
+                EncryptedContainer container = containers.get(0);
 
-                // We can now load the database content as a JSON object
+                // Legacy databases are directly encrypted with a key derived from the master password.
+                boolean legacyFormat = container.kdf != EncryptedContainer.KDF_NONE;
+
+                // We can now load the database content
                 try {
-                    String jsonData = new String(decrypted, StandardCharsets.UTF_8);
-                    PasswordDatabaseInfo dbInfo = PasswordDatabaseInfo.fromJson(jsonData);
+                    PasswordDatabaseInfo dbInfo;
+                    PasswordDatabaseInfo.MasterKey masterKey;
+                    long parseStartTime;
+                    if (legacyFormat) {
+                        // Decrypted in one go: the padding check must run before parsing, so that a wrong master
+                        // password is reported as such and not as a corrupted database.
+                        LegacyDecryptionResult result = decryptLegacyData(container, masterPassword);
+                        masterKey = result.masterKey;
+                        parseStartTime = System.nanoTime();
+                        dbInfo = PasswordDatabaseInfo.fromJson(new String(result.decrypted, StandardCharsets.UTF_8));
+                        dataKey = generateDataKey();
+                    }
+                    else {
+                        // The master password is checked by the data key decryption. The database content is parsed
+                        // from the decryption stream, without building the JSON text. The GCM cipher only releases the
+                        // plain data once it's authenticated, at the end, so it does hold all of it at that time.
+                        EncryptedContainer masterKeyContainer = readDataKeyContainer(did);
+                        masterKey = deriveMasterKey(masterPassword, masterKeyContainer);
+                        dataKey = decryptDataKey(masterKeyContainer, masterKey);
+                        parseStartTime = System.nanoTime();
+                        Reader reader = openDecryptionReader(container, new SecretKeySpec(dataKey, "AES"));
+                        try {
+                            if (sharded)
+                                dbInfo = PasswordDatabaseInfo.fromManifestJson(reader);
+                            else
+                                dbInfo = PasswordDatabaseInfo.fromJson(reader, containers.subList(1, containers.size()).iterator());
+                        }
+                        finally {
+                            reader.close();
+                        }
+                    }
+                    // Also includes the decryption of the streamed content
+                    PasswordMetrics.record(PasswordMetrics.Phase.DATABASE_PARSE, parseStartTime);
+
+                    // Wipes the local copy of the data key
+                    dbInfo.setDataKey(dataKey);
+                    dbInfo.entryCipher = createEntryCipher(dbInfo);
+                    dbInfo.masterKey = masterKey;
+
+                    // Apply changes saved after this snapshot was written. Shards are saved without journal.
+                    if (!sharded) {
+                        replayJournal(did, dbInfo);
+                    }
+
                     databasesInfo.put(did, dbInfo);
 
                     // Decryption was successful, saved master password in memory for a while.
-                    dbInfo.activeMasterPassword = masterPassword;
+                    dbInfo.setActiveMasterPassword(masterPassword);
+                    PasswordMetrics.increment(PasswordMetrics.Counter.UNLOCKS);
+                    scheduleSessionExpiry(did, dbInfo);
+                    notifyDatabaseChanged(PasswordChangeEvent.Type.UNLOCK, null, null);
+
+                    boolean migrateToShards = !sharded && isShardedStorageEnabled();
+                    if (legacyFormat || migrateToShards) {
+                        // Upgrade to the data key format. The data key is saved first: as long as the legacy
+                        // database file is not replaced, it's still decrypted with the master password.
+                        if (legacyFormat) {
+                            saveDataKey(did, dbInfo.dataKey, masterKey);
+                        }
+
+                        dbInfo.sharded = migrateToShards;
+                        encryptAndSaveDatabase(did);
+                    }
+
+                    upgradeMasterKeyInBackground(did, dbInfo);
                 } catch (JSONException e) {
                     throw new Exception("Passwords database JSON content for did " + did + " is corrupted");
                 }
             } catch (IOException e) {
                 throw new Exception("Passwords database file for did " + did + " is corrupted");
             }
+            finally {
+                // Not wiped yet if the database could not be loaded
+                if (dataKey != null) {
+                    Arrays.fill(dataKey, (byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of a legacy database decryption: the decrypted content and the master key that could decrypt it.
+     */
+    private static class LegacyDecryptionResult {
+        final PasswordDatabaseInfo.MasterKey masterKey;
+        final byte[] decrypted;
+
+        LegacyDecryptionResult(PasswordDatabaseInfo.MasterKey masterKey, byte[] decrypted) {
+            this.masterKey = masterKey;
+            this.decrypted = decrypted;
         }
     }
 
     /**
-     * Decryption attempt, multi-steps (different iteration counts) for backward compatibility with
-     * older keys.
+     * Decryption of legacy databases, whose key derivation iteration count was not saved and changed over time.
+     * Possible iteration counts are tried one after the other, cheapest first: a failed attempt with a low
+     * count costs little compared to the highest one.
      */
-     // NOTE: implementation not used, because 327680 is a bit slow on some devices - not worth the change for now
-   /*  private byte[] decryptData(HashMap<String, byte[]> map, String masterPassword) throws Exception
+    private LegacyDecryptionResult decryptLegacyData(EncryptedContainer container, char[] masterPassword) throws Exception
     {
-        Exception decryptionError = null;
-        int[] iterationCounts = {327680, 1324}; // Most probable iteration counts should be first in the list
-        for (int i=0;i<iterationCounts.length; i++) {
+        AuthenticationFailedException decryptionError = null;
+        for (int iterations : EncryptedContainer.LEGACY_PBKDF2_ITERATION_COUNTS) {
+            SecretKeySpec keySpec = deriveMasterKey(masterPassword, container.salt, iterations);
             try {
-                byte[] decrypted = _decryptData(map, masterPassword, iterationCounts[i]);
-                // If we are here, this means we could decrypt.
-                return decrypted;
-            }
-            catch (Exception e) {
-                if (e.getMessage().contains("BAD_DECRYPT")) {
-                    // Remember one of the decrypt exceptions to re-throw it in the end if none of the methods worked
-                    decryptionError = e;
-                }
-                else {
-                    // Other exception than decryption: immediately forward the exception and stop.
-                    throw e;
+                byte[] decrypted = decryptData(container, keySpec);
+
+                // A wrong key can still produce a valid padding, by chance. The database content is a JSON object.
+                if (decrypted.length == 0 || decrypted[0] != '{') {
+                    throw new AuthenticationFailedException();
                 }
+                return new LegacyDecryptionResult(new PasswordDatabaseInfo.MasterKey(keySpec, container.salt, iterations), decrypted);
+            }
+            catch (AuthenticationFailedException e) {
+                // Re-thrown in the end if none of the attempts worked
+                decryptionError = e;
             }
         }
-
-        // If we are here, this means none of the above attempts have succeeded
         throw decryptionError;
-    } */
+    }
 
-    // private byte[] _decryptData(HashMap<String, byte[]> map, String masterPassword, int iterationCount) throws Exception
-    private byte[] decryptData(HashMap<String, byte[]> map, String masterPassword) throws Exception
+    private byte[] decryptData(EncryptedContainer container, char[] masterPassword) throws Exception
     {
-        byte[] decrypted = null;
-
-        byte[] salt = map.get("salt");
-        byte[] iv = map.get("iv");
-        byte[] encrypted = map.get("encrypted");
-
         // Regenerate key from password
-        char[] passwordChar = masterPassword.toCharArray();
-        PBEKeySpec pbKeySpec = new PBEKeySpec(passwordChar, salt, 1324, 256);
-        // PBEKeySpec pbKeySpec = new PBEKeySpec(passwordChar, salt, iterationCount, 256);
-        SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        byte[] keyBytes = secretKeyFactory.generateSecret(pbKeySpec).getEncoded();
-        SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-
-        // Decrypt
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-        decrypted = cipher.doFinal(encrypted);
+        PasswordDatabaseInfo.MasterKey masterKey = deriveMasterKey(masterPassword, container);
 
-        return decrypted;
+        return decryptData(container, masterKey.keySpec);
     }
 
-    private void encryptAndSaveDatabase(String did, String masterPassword) throws Exception {
-        String dbPath = getDatabaseFilePath(did);
-        ensureDbPathExists(dbPath);
+    private byte[] decryptData(EncryptedContainer container, SecretKeySpec keySpec) throws Exception
+    {
+        return decryptData(container, keySpec, null);
+    }
 
-        // Make sure the database is open
-        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
-        if (dbInfo == null) {
-            throw new Exception("Can't save a closed database");
+    /**
+     * @param associatedData Data authenticated with the encrypted data but not saved in the container, or null.
+     */
+    private byte[] decryptData(EncryptedContainer container, SecretKeySpec keySpec, byte[] associatedData) throws Exception
+    {
+        // Decrypt
+        long startTime = System.nanoTime();
+        try {
+            Cipher cipher = createDecryptionCipher(container, keySpec, false);
+            if (associatedData != null) {
+                // Unauthenticated containers can't be bound to anything
+                if (container.version != EncryptedContainer.VERSION_GCM)
+                    throw new AuthenticationFailedException();
+
+                cipher.updateAAD(associatedData);
+            }
+            return cipher.doFinal(container.encrypted);
+        }
+        catch (BadPaddingException e) {
+            // Authentication tag mismatch (GCM), or invalid padding (CBC): wrong key, or modified data
+            throw new AuthenticationFailedException();
         }
+        finally {
+            PasswordMetrics.record(PasswordMetrics.Phase.AES_DECRYPT, startTime);
+        }
+    }
 
-        // Convert JSON data into bytes
-        byte[] data = dbInfo.rawJson.toString().getBytes();
+    /**
+     * Stream of decrypted data. CBC data is decrypted block by block while it's read, GCM data is decrypted as a
+     * whole when the end of the encrypted data is reached. Padding and authentication errors are reported as
+     * IOExceptions at that time.
+     */
+    private InputStream openDecryptionStream(EncryptedContainer container, SecretKeySpec keySpec) throws Exception
+    {
+        Cipher cipher = createDecryptionCipher(container, keySpec, true);
+        return new CipherInputStream(new ByteArrayInputStream(container.encrypted), cipher);
+    }
 
-        // Encrypt and get result
-        HashMap<String, byte[]> result = encryptData(data, masterPassword);
+    /**
+     * Password entries are encrypted separately with the database data key, as long as the database is unlocked.
+     * Each entry is authenticated with its application and key, so that it can't be moved to another entry.
+     */
+    private PasswordEntry.EntryCipher createEntryCipher(PasswordDatabaseInfo dbInfo) {
+        return new PasswordEntry.EntryCipher() {
+            @Override
+            public byte[] decrypt(EncryptedContainer container, byte[] associatedData) throws Exception {
+                return decryptData(container, dbInfo.dataKeySpec, associatedData);
+            }
 
-        // Save Salt, IV and encrypted data as serialized hashmap object in the database file.
-        FileOutputStream fos = new FileOutputStream(new File(dbPath));
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(result);
-        oos.close();
+            @Override
+            public EncryptedContainer encrypt(byte[] data, byte[] associatedData) throws Exception {
+                return encryptData(data, dbInfo.dataKeySpec, new EncryptedContainer(), associatedData);
+            }
+        };
+    }
+
+    private Reader openDecryptionReader(EncryptedContainer container, SecretKeySpec keySpec) throws Exception
+    {
+        return new InputStreamReader(openDecryptionStream(container, keySpec), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Streaming ciphers are used while other data is encrypted or decrypted on the same thread, so they get
+     * their own instance instead of the thread's cached one.
+     */
+    private Cipher createDecryptionCipher(EncryptedContainer container, SecretKeySpec keySpec, boolean streaming) throws Exception
+    {
+        if (container.version == EncryptedContainer.VERSION_CBC) {
+            Cipher cipher = getCipher(CryptoService.AES_CBC, streaming);
+            IvParameterSpec ivSpec = new IvParameterSpec(container.iv);
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
+            return cipher;
+        }
+
+        Cipher cipher = getCipher(CryptoService.AES_GCM, streaming);
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_SIZE_BITS, container.iv));
+        cipher.updateAAD(container.getAuthenticatedHeader());
+        return cipher;
+    }
+
+    /**
+     * Prepares the encryption of a container. All header fields but the encrypted data must be set before, as
+     * they are authenticated with the encrypted data.
+     */
+    private Cipher createEncryptionCipher(EncryptedContainer container, SecretKeySpec keySpec, boolean streaming) throws Exception
+    {
+        container.version = EncryptedContainer.VERSION_GCM;
+        container.iv = generateIv();
+
+        Cipher cipher = getCipher(CryptoService.AES_GCM, streaming);
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_SIZE_BITS, container.iv));
+        cipher.updateAAD(container.getAuthenticatedHeader());
+        return cipher;
     }
 
-    private HashMap<String, byte[]> encryptData(byte[] plainTextBytes, String masterPassword) throws Exception
+    private Cipher getCipher(String transformation, boolean streaming) throws Exception
     {
-        HashMap<String, byte[]> map = new HashMap<String, byte[]>();
+        return streaming ? CryptoService.newCipher(transformation) : CryptoService.getCipher(transformation);
+    }
+
+    /**
+     * Derives the master key again, using the key derivation parameters saved with the given encrypted data.
+     */
+    private PasswordDatabaseInfo.MasterKey deriveMasterKey(char[] masterPassword, EncryptedContainer container) throws Exception {
+        if (container.kdf != EncryptedContainer.KDF_PBKDF2_HMAC_SHA1) {
+            throw new Exception("Unsupported key derivation function " + container.kdf);
+        }
 
+        SecretKeySpec keySpec = deriveMasterKey(masterPassword, container.salt, container.iterations);
+        return new PasswordDatabaseInfo.MasterKey(keySpec, container.salt, container.iterations);
+    }
+
+    /**
+     * Derives a master key from a new random salt, to encrypt the data key with a new master password.
+     */
+    private PasswordDatabaseInfo.MasterKey deriveNewMasterKey(char[] masterPassword) throws Exception {
         // Random salt for next step
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[256];
-        random.nextBytes(salt);
+        byte[] salt = CryptoService.randomBytes(256);
+
+        int iterations = getCalibratedKdfIterations();
+        SecretKeySpec keySpec = deriveMasterKey(masterPassword, salt, iterations);
+        return new PasswordDatabaseInfo.MasterKey(keySpec, salt, iterations);
+    }
+
+    /**
+     * Returns the PBKDF2 iteration count to use for new master keys. The count is measured once on this device,
+     * so that deriving the master key takes about KDF_TARGET_DURATION_MS: fast devices get a much stronger key
+     * derivation, while slow devices don't wait too long at each unlock.
+     */
+    private int getCalibratedKdfIterations() {
+        SharedPreferences prefs = activity.getSharedPreferences(SHARED_PREFS_KEY, Context.MODE_PRIVATE);
+        int iterations = prefs.getInt(PREF_KEY_KDF_ITERATIONS, 0);
+        if (iterations > 0) {
+            return iterations;
+        }
+
+        try {
+            byte[] salt = CryptoService.randomBytes(256);
+
+            // Warm up the crypto provider first so that its initialization is not part of the measure
+            char[] calibrationPassword = "calibration".toCharArray();
+            deriveMasterKey(calibrationPassword, salt, 1);
+
+            long startTime = System.nanoTime();
+            deriveMasterKey(calibrationPassword, salt, KDF_CALIBRATION_ITERATIONS);
+            long durationNs = Math.max(1, System.nanoTime() - startTime);
+
+            long targetIterations = KDF_CALIBRATION_ITERATIONS * (KDF_TARGET_DURATION_MS * 1000000L) / durationNs;
+            iterations = (int) Math.max(EncryptedContainer.LEGACY_PBKDF2_ITERATIONS, Math.min(KDF_MAX_ITERATIONS, targetIterations));
+        }
+        catch (Exception e) {
+            Log.w(LOG_TAG, "Unable to calibrate the master key derivation: " + e.getMessage());
+            return EncryptedContainer.LEGACY_PBKDF2_ITERATIONS;
+        }
 
+        Log.d(LOG_TAG, "Master key derivation calibrated to " + iterations + " iterations");
+        prefs.edit().putInt(PREF_KEY_KDF_ITERATIONS, iterations).apply();
+        return iterations;
+    }
+
+    /**
+     * Databases whose data key is protected by a weaker key derivation than what this device can afford (created
+     * by older versions, or on a slower device) get their data key re-encrypted with a stronger master key.
+     * This runs in background after a successful unlock, as the new key derivation is slow by design.
+     */
+    private void upgradeMasterKeyInBackground(String did, PasswordDatabaseInfo dbInfo) {
+        PasswordDatabaseInfo.MasterKey currentMasterKey = dbInfo.masterKey;
+
+        cordovaPlugin.cordova.getThreadPool().execute(() -> {
+            char[] masterPassword = null;
+            try {
+                if (currentMasterKey.iterations >= getCalibratedKdfIterations()) {
+                    return;
+                }
+
+                synchronized (dbInfo) {
+                    // Database locked or master password changed in the meantime: nothing to upgrade any more.
+                    if (dbInfo.masterKey != currentMasterKey) {
+                        return;
+                    }
+                    masterPassword = dbInfo.activeMasterPassword.getChars();
+                }
+
+                PasswordDatabaseInfo.MasterKey newMasterKey = deriveNewMasterKey(masterPassword);
+                synchronized (dbInfo) {
+                    // Database locked or master password changed in the meantime: nothing to upgrade any more.
+                    if (dbInfo.masterKey != currentMasterKey) {
+                        return;
+                    }
+
+                    saveDataKey(did, dbInfo.dataKey, newMasterKey);
+                    dbInfo.masterKey = newMasterKey;
+                }
+                Log.d(LOG_TAG, "Master key upgraded to " + newMasterKey.iterations + " iterations");
+            }
+            catch (Exception e) {
+                Log.w(LOG_TAG, "Unable to upgrade the master key: " + e.getMessage());
+            }
+            finally {
+                if (masterPassword != null) {
+                    Arrays.fill(masterPassword, '\0');
+                }
+            }
+        });
+    }
+
+    private SecretKeySpec deriveMasterKey(char[] masterPassword, byte[] salt, int iterations) throws Exception {
         // PBKDF2 - derive the key from the password, don't use passwords directly
-        char[] passwordChar = masterPassword.toCharArray(); // Turn password into char[] array
-        PBEKeySpec pbKeySpec = new PBEKeySpec(passwordChar, salt, 1324, 256);
-        // PBEKeySpec pbKeySpec = new PBEKeySpec(passwordChar, salt, 327680, 256);
-        SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        byte[] keyBytes = secretKeyFactory.generateSecret(pbKeySpec).getEncoded();
-        SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-
-        // Create initialization vector for AES
-        SecureRandom ivRandom = new SecureRandom(); // Not caching previous seeded instance of SecureRandom
-        byte[] iv = new byte[16];
-        ivRandom.nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
+        long startTime = System.nanoTime();
+        PBEKeySpec pbKeySpec = new PBEKeySpec(masterPassword, salt, iterations, 256);
+        byte[] keyBytes = null;
+        try {
+            keyBytes = CryptoService.getPbkdf2SecretKeyFactory().generateSecret(pbKeySpec).getEncoded();
+            return new SecretKeySpec(keyBytes, "AES");
+        }
+        finally {
+            // The key spec and the encoded key are copies of the secrets
+            pbKeySpec.clearPassword();
+            if (keyBytes != null) {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+            PasswordMetrics.record(PasswordMetrics.Phase.KDF, startTime);
+        }
+    }
+
+    private byte[] generateDataKey() {
+        return CryptoService.randomBytes(DATA_KEY_SIZE);
+    }
+
+    /**
+     * Encrypts the data key with the key derived from the master password, and saves it to its own file.
+     */
+    private void saveDataKey(String did, SecretBuffer dataKey, PasswordDatabaseInfo.MasterKey masterKey) throws Exception {
+        String dataKeyPath = getDataKeyFilePath(did);
+        ensureDbPathExists(dataKeyPath);
+
+        EncryptedContainer container = new EncryptedContainer();
+        container.kdf = EncryptedContainer.KDF_PBKDF2_HMAC_SHA1;
+        container.iterations = masterKey.iterations;
+        container.salt = masterKey.salt;
+        byte[] dataKeyBytes = dataKey.getBytes();
+        try {
+            encryptData(dataKeyBytes, masterKey.keySpec, container, null);
+        }
+        finally {
+            Arrays.fill(dataKeyBytes, (byte) 0);
+        }
+        container.write(new File(dataKeyPath));
+    }
+
+    private EncryptedContainer readDataKeyContainer(String did) throws Exception {
+        File dataKeyFile = new File(getDataKeyFilePath(did));
+        if (!dataKeyFile.exists()) {
+            throw new Exception("Passwords database key file for did " + did + " is missing");
+        }
+
+        return EncryptedContainer.read(dataKeyFile);
+    }
+
+    private byte[] decryptDataKey(EncryptedContainer container, PasswordDatabaseInfo.MasterKey masterKey) throws Exception {
+        byte[] dataKey = decryptData(container, masterKey.keySpec);
+        if (dataKey.length != DATA_KEY_SIZE) {
+            // With CBC, a wrong master password can still produce a valid padding, by chance. Treat it as a
+            // wrong password.
+            throw new AuthenticationFailedException();
+        }
+        return dataKey;
+    }
+
+    private void encryptAndSaveDatabase(String did) throws Exception {
+        // Make sure the database is open
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        if (dbInfo == null) {
+            throw new Exception("Can't save a closed database");
+        }
+
+        encryptAndSaveDatabase(did, dbInfo);
+    }
+
+    private void encryptAndSaveDatabase(String did, PasswordDatabaseInfo dbInfo) throws Exception {
+        long startTime = System.nanoTime();
+        if (dbInfo.sharded) {
+            saveShards(did, dbInfo, dbInfo.getAppIDs());
+            PasswordMetrics.record(PasswordMetrics.Phase.DATABASE_SAVE, startTime);
+            return;
+        }
+
+        String dbPath = getDatabaseFilePath(did);
+        ensureDbPathExists(dbPath);
+
+        // Serialize the database straight into the encrypted database file. Journal records of the previous
+        // snapshot are bound to its generation, so they can't be replayed over the new one.
+        encryptEntries(dbInfo, null);
+        long previousGeneration = dbInfo.getGeneration();
+        dbInfo.setGeneration(previousGeneration + 1);
+        try {
+            encryptAndSaveJson(dbPath, dbInfo.dataKeySpec, dbInfo::writeJson);
+        }
+        catch (Exception e) {
+            dbInfo.setGeneration(previousGeneration);
+            throw e;
+        }
+
+        // The new snapshot contains all journaled changes. If the journal can't be deleted now, it's deleted
+        // before the next records are appended (see appendToJournal()).
+        dbInfo.journalRecordsCount = 0;
+        deleteJournal(did);
+        PasswordMetrics.record(PasswordMetrics.Phase.DATABASE_SAVE, startTime);
+    }
+
+    /**
+     * Saves the shards of the given applications, then the manifest if the list of applications changed. A new
+     * application shard is never listed in the manifest before being saved.
+     */
+    private void saveShards(String did, PasswordDatabaseInfo dbInfo, Collection<String> appIDs) throws Exception {
+        File manifestFile = new File(getManifestFilePath(did));
+        ensureDbPathExists(manifestFile.getPath());
+
+        for (String appID : appIDs) {
+            encryptEntries(dbInfo, appID);
+            encryptAndSaveJson(getShardFilePath(did, appID), dbInfo.dataKeySpec,
+                    (writer, entryContainers) -> dbInfo.writeShardJson(writer, appID, entryContainers));
+        }
+
+        if (dbInfo.manifestDirty || !manifestFile.exists()) {
+            encryptAndSaveJson(manifestFile.getPath(), dbInfo.dataKeySpec, (writer, entryContainers) -> dbInfo.writeManifestJson(writer));
+            dbInfo.manifestDirty = false;
+
+            // Database content moved from the single database file to the shards, if it was not done yet
+            File dbFile = new File(getDatabaseFilePath(did));
+            if (dbFile.exists()) {
+                dbFile.delete();
+            }
+            deleteJournal(did);
+        }
+    }
+
+    /**
+     * Loads the shard of the given application if it's not loaded yet, or all shards if appID is null.
+     */
+    private void loadShards(String did, PasswordDatabaseInfo dbInfo, String appID) throws Exception {
+        synchronized (dbInfo) {
+            if (!dbInfo.sharded) {
+                return;
+            }
+
+            for (String unloadedAppID : dbInfo.getUnloadedAppIDs()) {
+                if (appID != null && !appID.equals(unloadedAppID)) {
+                    continue;
+                }
+
+                ArrayList<EncryptedContainer> containers = EncryptedContainer.readAll(new File(getShardFilePath(did, unloadedAppID)));
+                long startTime = System.nanoTime();
+                Reader reader = openDecryptionReader(containers.get(0), dbInfo.dataKeySpec);
+                try {
+                    dbInfo.loadShardJson(unloadedAppID, reader, containers.subList(1, containers.size()).iterator());
+                }
+                finally {
+                    reader.close();
+                }
+                PasswordMetrics.record(PasswordMetrics.Phase.DATABASE_PARSE, startTime);
+            }
+        }
+    }
+
+    private interface EntryTask {
+        void run(PasswordEntry entry) throws Exception;
+    }
+
+    /**
+     * Runs a task on each of the given entries. Entries are encrypted separately, so large numbers of entries are
+     * split into one batch per core and processed in parallel.
+     */
+    private void runOnEntries(List<PasswordEntry> entries, EntryTask task) throws Exception {
+        int batchesCount = Math.min(CRYPTO_THREADS, entries.size() / MIN_ENTRIES_PER_CRYPTO_TASK);
+        // Crypto threads must not wait for other crypto tasks, which could be queued behind them
+        if (batchesCount <= 1 || Thread.currentThread().getName().equals(CRYPTO_THREAD_NAME)) {
+            for (PasswordEntry entry : entries) {
+                task.run(entry);
+            }
+            return;
+        }
+
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < batchesCount; i++) {
+            List<PasswordEntry> batch = entries.subList(i * entries.size() / batchesCount, (i + 1) * entries.size() / batchesCount);
+            futures.add(cryptoExecutor.submit(() -> {
+                for (PasswordEntry entry : batch) {
+                    task.run(entry);
+                }
+                return null;
+            }));
+        }
+
+        Exception error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                if (error == null)
+                    error = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void decryptEntries(PasswordDatabaseInfo dbInfo, String appID) throws Exception {
+        ArrayList<PasswordEntry> entries = new ArrayList<>();
+        for (PasswordEntry entry : dbInfo.getEntries(appID)) {
+            if (!entry.isDecrypted())
+                entries.add(entry);
+        }
+        runOnEntries(entries, entry -> entry.getInfo(dbInfo.entryCipher));
+    }
+
+    private void encryptEntries(PasswordDatabaseInfo dbInfo, String appID) throws Exception {
+        ArrayList<PasswordEntry> entries = new ArrayList<>();
+        for (PasswordEntry entry : dbInfo.getEntries(appID)) {
+            if (!entry.isEncrypted())
+                entries.add(entry);
+        }
+        runOnEntries(entries, entry -> entry.getEncrypted(dbInfo.entryCipher));
+    }
+
+    /**
+     * Writes JSON content to encrypt, and adds the encrypted entries to save after this content.
+     */
+    private interface JsonContentWriter {
+        void writeTo(Writer writer, List<EncryptedContainer> entryContainers) throws Exception;
+    }
+
+    private void encryptAndSaveJson(String path, SecretKeySpec keySpec, JsonContentWriter contentWriter) throws Exception {
+        EncryptedContainer container = new EncryptedContainer();
+        Cipher cipher = createEncryptionCipher(container, keySpec, true);
+        ArrayList<EncryptedContainer> entryContainers = new ArrayList<>();
+        container.write(new File(path), cipher, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            contentWriter.writeTo(writer, entryContainers);
+            writer.flush();
+        }, entryContainers);
+    }
+
+    /**
+     * Queues a change already applied to the unlocked database, to be saved in background. Changes queued
+     * within SAVE_DEBOUNCE_DELAY_MS are saved together. The listener is called once the change is saved, or
+     * right away if the caller doesn't need to wait for the disk write. In that case, if previous changes
+     * could not be saved, the listener is told with an error: the change stays queued and is saved with them
+     * on the next retry.
+     *
+     * @param key Key of the changed entry, or null for a batch of changes.
+     */
+    private void queueDatabaseChange(String did, PasswordDatabaseInfo dbInfo, String appID, String key, JSONObject journalRecord,
+                                     PasswordSaveDurability durability, OnDatabaseSavedListener listener) {
+        String saveError;
+        synchronized (dbInfo) {
+            if (dbInfo.dataKeySpec == null) {
+                // Locked by another thread after the change was applied
+                saveError = "The passwords database was locked before the change could be saved";
+                durability = PasswordSaveDurability.APPLIED_IN_MEMORY;
+            }
+            else {
+                dbInfo.queueJournalRecord(appID, key, journalRecord);
+                if (durability == PasswordSaveDurability.SAVED_TO_DISK) {
+                    dbInfo.pendingSaveListeners.add(listener);
+                }
+
+                if (!dbInfo.saveScheduled) {
+                    dbInfo.saveScheduled = scheduleSaveTask(() -> flushPendingChanges(did, dbInfo), SAVE_DEBOUNCE_DELAY_MS);
+                }
+                saveError = dbInfo.saveError;
+                if (!dbInfo.saveScheduled) {
+                    // Password manager destroyed: nothing will save this change any more
+                    dbInfo.pendingSaveListeners.remove(listener);
+                    saveError = "The password manager was shut down before the change could be saved";
+                    durability = PasswordSaveDurability.APPLIED_IN_MEMORY;
+                }
+            }
+        }
+
+        if (durability == PasswordSaveDurability.APPLIED_IN_MEMORY) {
+            if (saveError == null)
+                listener.onDatabaseSaved();
+            else
+                listener.onError(saveError);
+        }
+    }
+
+    /**
+     * Saves all pending changes of a database now, on the calling thread, then notifies the callers waiting
+     * for these changes to be saved.
+     */
+    private void flushPendingChanges(String did, PasswordDatabaseInfo dbInfo) {
+        ArrayList<OnDatabaseSavedListener> listeners;
+        Exception error;
+        synchronized (dbInfo) {
+            listeners = dbInfo.takePendingSaveListeners();
+            error = savePendingChanges(did, dbInfo);
+        }
+        notifyDatabaseSaved(listeners, error);
+    }
+
+    /**
+     * Saves the pending changes of a database. Must be called with the database lock held.
+     *
+     * Changes that can't be saved stay queued and a new save is scheduled: the error is returned, and kept
+     * to be reported to the next callers that don't wait for their changes to be saved.
+     */
+    private Exception savePendingChanges(String did, PasswordDatabaseInfo dbInfo) {
+        dbInfo.saveScheduled = false;
+        if (dbInfo.pendingJournalRecords.isEmpty()) {
+            return null;
+        }
+
+        try {
+            if (dbInfo.dataKeySpec == null) {
+                throw new Exception("Can't save a closed database");
+            }
+            saveDatabaseChanges(did, dbInfo, new ArrayList<>(dbInfo.pendingJournalRecords.values()));
+            dbInfo.pendingJournalRecords.clear();
+            dbInfo.saveError = null;
+            return null;
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "Unable to save the passwords database changes: " + e.getMessage());
+            if (dbInfo.dataKeySpec == null) {
+                dbInfo.pendingJournalRecords.clear();
+            }
+            else {
+                dbInfo.saveError = "Unable to save the passwords database changes, they will be saved again later: " + e.getMessage();
+                dbInfo.saveScheduled = scheduleSaveTask(() -> flushPendingChanges(did, dbInfo), SAVE_RETRY_DELAY_MS);
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Schedules a task on the save thread. Returns false if the password manager was destroyed, in which
+     * case the task will never run.
+     */
+    private boolean scheduleSaveTask(Runnable task, long delayMs) {
+        try {
+            saveExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Password manager destroyed, background task not scheduled");
+            return false;
+        }
+    }
+
+    private void notifyDatabaseSaved(ArrayList<OnDatabaseSavedListener> listeners, Exception error) {
+        for (OnDatabaseSavedListener listener : listeners) {
+            if (error == null)
+                listener.onDatabaseSaved();
+            else
+                listener.onError(error.getMessage());
+        }
+    }
+
+    private void flushAllPendingChanges() {
+        for (String did : new ArrayList<>(databasesInfo.keySet())) {
+            PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+            if (dbInfo != null) {
+                flushPendingChanges(did, dbInfo);
+            }
+        }
+    }
 
+    /**
+     * Persists database changes. The changes are appended to the journal as encrypted records, so the cost
+     * of a save doesn't depend on the database size. When the journal becomes too long, the whole database
+     * is saved as a new snapshot instead, and the journal is cleared.
+     */
+    private void saveDatabaseChanges(String did, PasswordDatabaseInfo dbInfo, ArrayList<JSONObject> journalRecords) throws Exception {
+        long startTime = System.nanoTime();
+        if (!databaseExists(did)) {
+            // Database was created by unlocking it but never saved yet: save everything.
+            saveDataKey(did, dbInfo.dataKey, dbInfo.masterKey);
+            encryptAndSaveDatabase(did, dbInfo);
+        }
+        else if (dbInfo.sharded) {
+            // Only the shards of the modified applications are saved again
+            LinkedHashSet<String> appIDs = new LinkedHashSet<>();
+            for (JSONObject journalRecord : journalRecords) {
+                appIDs.add(PasswordDatabaseInfo.getJournalRecordAppID(journalRecord));
+            }
+            saveShards(did, dbInfo, appIDs);
+        }
+        else if (dbInfo.journalRecordsCount + journalRecords.size() > MAX_JOURNAL_RECORDS) {
+            encryptAndSaveDatabase(did, dbInfo);
+        }
+        else {
+            appendToJournal(did, dbInfo, journalRecords);
+            dbInfo.journalRecordsCount += journalRecords.size();
+        }
+        PasswordMetrics.record(PasswordMetrics.Phase.CHANGES_SAVE, startTime);
+        PasswordMetrics.increment(PasswordMetrics.Counter.SAVES);
+        Log.d(LOG_TAG, journalRecords.size() + " password database change(s) saved in " + (System.nanoTime() - startTime) / 1000 + "us");
+    }
+
+    /**
+     * Journal file format: a sequence of encrypted containers, one per JSON change record, encrypted with the
+     * data key and authenticated with the snapshot generation. Records saved together are appended and synced
+     * to the disk at once.
+     */
+    private void appendToJournal(String did, PasswordDatabaseInfo dbInfo, ArrayList<JSONObject> journalRecords) throws Exception {
+        String journalPath = getJournalFilePath(did);
+        ensureDbPathExists(journalPath);
+
+        // A journal that should be empty holds records of an older snapshot, whose deletion failed. New records
+        // appended after them would be dropped with them on replay.
+        if (dbInfo.journalRecordsCount == 0) {
+            deleteJournal(did);
+        }
+
+        byte[] associatedData = PasswordDatabaseInfo.getJournalAssociatedData(dbInfo.getGeneration());
+        ArrayList<EncryptedContainer> containers = new ArrayList<>();
+        for (JSONObject journalRecord : journalRecords) {
+            byte[] data = journalRecord.toString().getBytes(StandardCharsets.UTF_8);
+            containers.add(encryptData(data, dbInfo.dataKeySpec, new EncryptedContainer(), associatedData));
+        }
+        EncryptedContainer.append(new File(journalPath), containers);
+    }
+
+    /**
+     * Replays all journal records over a freshly loaded database snapshot.
+     *
+     * Replay stops at the first record that can't be read or authenticated: this is either a tail damaged by an
+     * interrupted write, or records left over from a previous snapshot or data key, whose journal could not be
+     * deleted after the new snapshot was written. In both cases the journal is truncated after the last valid
+     * record so that further appends remain readable.
+     *
+     * A record that was authenticated but can't be applied is not a torn write: the error is thrown and the
+     * journal is left untouched.
+     */
+    private void replayJournal(String did, PasswordDatabaseInfo dbInfo) throws Exception {
+        File journalFile = new File(getJournalFilePath(did));
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        ByteBuffer journal = EncryptedContainer.readFully(journalFile);
+        byte[] associatedData = PasswordDatabaseInfo.getJournalAssociatedData(dbInfo.getGeneration());
+        int validLength = 0;
+        int recordsCount = 0;
+        while (journal.hasRemaining()) {
+            byte[] decrypted;
+            try {
+                EncryptedContainer record = EncryptedContainer.readFrom(journal);
+                if (record.kdf != EncryptedContainer.KDF_NONE)
+                    throw new AuthenticationFailedException();
+
+                decrypted = decryptData(record, dbInfo.dataKeySpec, associatedData);
+            }
+            catch (IOException | AuthenticationFailedException e) {
+                Log.w(LOG_TAG, "Unable to read passwords database journal record: " + e.getMessage());
+                break;
+            }
+
+            dbInfo.applyJournalRecord(new JSONObject(new String(decrypted, StandardCharsets.UTF_8)));
+
+            validLength = journal.position();
+            recordsCount++;
+        }
+
+        if (validLength < journal.limit()) {
+            FileOutputStream fos = new FileOutputStream(journalFile, true);
+            try {
+                fos.getChannel().truncate(validLength);
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+        }
+
+        dbInfo.journalRecordsCount = recordsCount;
+    }
+
+    private EncryptedContainer encryptData(byte[] plainTextBytes, SecretKeySpec keySpec) throws Exception
+    {
+        return encryptData(plainTextBytes, keySpec, new EncryptedContainer(), null);
+    }
+
+    /**
+     * @param associatedData Data authenticated with the encrypted data but not saved in the container, or null.
+     */
+    private EncryptedContainer encryptData(byte[] plainTextBytes, SecretKeySpec keySpec, EncryptedContainer container, byte[] associatedData) throws Exception
+    {
         // Encrypt
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-        byte[] encrypted = cipher.doFinal(plainTextBytes);
+        long startTime = System.nanoTime();
+        Cipher cipher = createEncryptionCipher(container, keySpec, false);
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        container.encrypted = cipher.doFinal(plainTextBytes);
+        PasswordMetrics.record(PasswordMetrics.Phase.AES_ENCRYPT, startTime);
+
+        return container;
+    }
 
-        map.put("salt", salt);
-        map.put("iv", iv);
-        map.put("encrypted", encrypted);
+    private byte[] generateIv() {
+        return CryptoService.randomBytes(GCM_IV_SIZE);
+    }
 
-        return map;
+    private void setPasswordInfoReal(PasswordInfo info, String did, String appID, PasswordSaveDurability durability, OnDatabaseSavedListener listener) throws Exception {
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        JSONObject journalRecord = PasswordDatabaseInfo.buildSetJournalRecord(appID, info);
+        loadShards(did, dbInfo, appID);
+        synchronized (dbInfo) {
+            checkDatabaseUnlocked(dbInfo);
+            dbInfo.setPasswordInfo(appID, info);
+            notifyDatabaseChanged(PasswordChangeEvent.Type.SET, appID, info.key);
+        }
+        queueDatabaseChange(did, dbInfo, appID, info.key, journalRecord, durability, listener);
     }
 
-    private void setPasswordInfoReal(PasswordInfo info, String did, String appID) throws Exception {
+    private void setPasswordInfosReal(ArrayList<PasswordInfo> infos, String did, String appID, PasswordSaveDurability durability, OnDatabaseSavedListener listener) throws Exception {
         PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
-        dbInfo.setPasswordInfo(appID, info);
-        encryptAndSaveDatabase(did, dbInfo.activeMasterPassword);
+        // Building the records first also checks all password info before anything is changed
+        JSONArray journalRecords = new JSONArray();
+        for (PasswordInfo info : infos) {
+            journalRecords.put(PasswordDatabaseInfo.buildSetJournalRecord(appID, info));
+        }
+        loadShards(did, dbInfo, appID);
+        synchronized (dbInfo) {
+            checkDatabaseUnlocked(dbInfo);
+            for (PasswordInfo info : infos) {
+                dbInfo.setPasswordInfo(appID, info);
+                notifyDatabaseChanged(PasswordChangeEvent.Type.SET, appID, info.key);
+            }
+        }
+        queueDatabaseChange(did, dbInfo, appID, null, PasswordDatabaseInfo.buildBatchJournalRecord(appID, journalRecords),
+                durability, listener);
     }
 
     private PasswordInfo getPasswordInfoReal(String key, String did, String appID) throws Exception {
-        return databasesInfo.get(did).getPasswordInfo(appID, key);
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, appID);
+        synchronized (dbInfo) {
+            return dbInfo.getPasswordInfo(appID, key);
+        }
+    }
+
+    private ArrayList<PasswordInfo> getPasswordInfosReal(ArrayList<String> keys, String did, String appID) throws Exception {
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, appID);
+        synchronized (dbInfo) {
+            ArrayList<PasswordEntry> entries = new ArrayList<>();
+            for (String key : keys) {
+                PasswordEntry entry = dbInfo.getPasswordEntry(appID, key);
+                if (entry != null)
+                    entries.add(entry);
+            }
+            runOnEntries(entries, entry -> entry.getInfo(dbInfo.entryCipher));
+
+            ArrayList<PasswordInfo> infos = new ArrayList<>();
+            for (String key : keys) {
+                infos.add(dbInfo.getPasswordInfo(appID, key));
+            }
+            return infos;
+        }
     }
 
     private ArrayList<PasswordInfo> getAllPasswordInfoReal(String did) throws Exception {
-        return  databasesInfo.get(did).getAllPasswordInfo();
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, null);
+        synchronized (dbInfo) {
+            decryptEntries(dbInfo, null);
+            return dbInfo.getAllPasswordInfo();
+        }
+    }
+
+    private void getPasswordInfoPageReal(String did, PasswordGetPageOptions options, OnPasswordInfoPageRetrievedListener listener) throws Exception {
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, options.appID);
+
+        ArrayList<PasswordInfo> infos = new ArrayList<>();
+        String nextCursor;
+        synchronized (dbInfo) {
+            PasswordDatabaseInfo.EntryPage page = dbInfo.getEntryPage(options.cursor, options.appID, options.type, options.pageSize);
+            runOnEntries(page.entries, entry -> entry.getInfo(dbInfo.entryCipher));
+            for (PasswordEntry entry : page.entries) {
+                infos.add(entry.getInfo(dbInfo.entryCipher));
+            }
+            nextCursor = page.nextCursor;
+        }
+        listener.onPasswordInfoPageRetrieved(infos, nextCursor);
+    }
+
+    private void getPasswordInfoMetadataPageReal(String did, PasswordGetPageOptions options, OnPasswordInfoMetadataPageRetrievedListener listener) throws Exception {
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, options.appID);
+
+        ArrayList<PasswordInfoMetadata> metadata = new ArrayList<>();
+        String nextCursor;
+        synchronized (dbInfo) {
+            PasswordDatabaseInfo.EntryPage page = dbInfo.getEntryPage(options.cursor, options.appID, options.type, options.pageSize);
+            for (PasswordEntry entry : page.entries) {
+                metadata.add(entry.getMetadata());
+            }
+            nextCursor = page.nextCursor;
+        }
+        listener.onPasswordInfoMetadataPageRetrieved(metadata, nextCursor);
+    }
+
+    private ArrayList<PasswordInfo> searchPasswordInfoReal(String query, String did, PasswordSearchOptions options) throws Exception {
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, null);
+        synchronized (dbInfo) {
+            // The search index is built from all decrypted entries, then maintained on changes
+            if (!dbInfo.hasSearchIndex()) {
+                decryptEntries(dbInfo, null);
+            }
+            return dbInfo.searchPasswordInfo(query, options.type, options.maxResults);
+        }
+    }
+
+    private void deletePasswordInfoReal(String key, String did, String targetAppID, OnDatabaseSavedListener listener) throws Exception {
+        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+        loadShards(did, dbInfo, targetAppID);
+        synchronized (dbInfo) {
+            checkDatabaseUnlocked(dbInfo);
+            dbInfo.deletePasswordInfo(targetAppID, key);
+            notifyDatabaseChanged(PasswordChangeEvent.Type.DELETE, targetAppID, key);
+        }
+        queueDatabaseChange(did, dbInfo, targetAppID, key, PasswordDatabaseInfo.buildDeleteJournalRecord(targetAppID, key),
+                PasswordSaveDurability.SAVED_TO_DISK, listener);
     }
 
-    private void deletePasswordInfoReal(String key, String did, String targetAppID) throws Exception {
+    private void deletePasswordInfosReal(ArrayList<String> keys, String did, String targetAppID, OnDatabaseSavedListener listener) throws Exception {
         PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
-        databasesInfo.get(did).deletePasswordInfo(targetAppID, key);
-        encryptAndSaveDatabase(did, dbInfo.activeMasterPassword);
+        JSONArray journalRecords = new JSONArray();
+        for (String key : keys) {
+            journalRecords.put(PasswordDatabaseInfo.buildDeleteJournalRecord(targetAppID, key));
+        }
+        loadShards(did, dbInfo, targetAppID);
+        synchronized (dbInfo) {
+            checkDatabaseUnlocked(dbInfo);
+            for (String key : keys) {
+                dbInfo.deletePasswordInfo(targetAppID, key);
+                notifyDatabaseChanged(PasswordChangeEvent.Type.DELETE, targetAppID, key);
+            }
+        }
+        queueDatabaseChange(did, dbInfo, targetAppID, null, PasswordDatabaseInfo.buildBatchJournalRecord(targetAppID, journalRecords),
+                PasswordSaveDurability.SAVED_TO_DISK, listener);
+    }
+
+    private interface MasterPasswordTask {
+        void run(char[] masterPassword) throws Exception;
+    }
+
+    /**
+     * Runs a task using a master password typed in the creation dialog, on a crypto thread: the new master key
+     * derivation is slow by design and must not block the UI thread. The dialog wipes its password once its
+     * listener returns, so the task gets its own copy, wiped once the task is done.
+     */
+    private void runWithNewMasterPassword(char[] password, MasterPasswordTask task, BasePasswordManagerListener listener) {
+        char[] passwordCopy = password.clone();
+        cryptoExecutor.execute(() -> {
+            try {
+                task.run(passwordCopy);
+            }
+            catch (Exception e) {
+                listener.onError(e.getMessage());
+            }
+            finally {
+                Arrays.fill(passwordCopy, '\0');
+            }
+        });
     }
 
     private SharedPreferences getPrefs(String did) {
@@ -778,19 +2283,17 @@ public class PasswordManager {
             new MasterPasswordCreator.Builder(activity, this)
                 .setOnNextClickedListener(password -> {
                     // Master password was provided and confirmed. Now we can use it.
+                    runWithNewMasterPassword(password, newPassword -> {
+                        // Create an empty database
+                        createEmptyDatabase(did, newPassword);
 
-                    // Create an empty database
-                    createEmptyDatabase(did, password);
-
-                    try {
                         // Save this empty database to remember that we have defined a master password
-                        encryptAndSaveDatabase(did, password);
+                        PasswordDatabaseInfo dbInfo = databasesInfo.get(did);
+                        saveDataKey(did, dbInfo.dataKey, dbInfo.masterKey);
+                        encryptAndSaveDatabase(did);
 
                         listener.onMasterPasswordCreated();
-                    }
-                    catch (Exception e) {
-                        listener.onError(e.getMessage());
-                    }
+                    }, listener);
                 })
                 .setOnCancelClickedListener(listener::onCancel)
                 .setOnErrorListener(listener::onError)
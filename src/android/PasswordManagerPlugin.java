@@ -39,9 +39,15 @@ import org.elastos.essentials.plugins.passwordmanager.passwordinfo.PasswordInfo;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PasswordManagerPlugin extends CordovaPlugin {
     private static final String TAG = "PasswordManagerPlugin";
@@ -50,9 +56,43 @@ public class PasswordManagerPlugin extends CordovaPlugin {
     private static final int NATIVE_ERROR_CODE_CANCELLED = -3;
     private static final int NATIVE_ERROR_CODE_UNSPECIFIED = -4;
     private static final int REQUEST_CODE_BIOMETRIC = 1;
+    // Plain reads and writes of password info. Actions that change the master password, the settings or the
+    // database lock are not batched, and neither are actions whose result is sent more than once.
+    private static final Set<String> BATCHABLE_ACTIONS = new HashSet<>(Arrays.asList(
+            "setPasswordInfo", "setPasswordInfos", "getPasswordInfo", "getPasswordInfos", "getAppPasswordInfo",
+            "getAllPasswordInfo", "getPasswordInfoPage", "searchPasswordInfo", "deletePasswordInfo",
+            "deletePasswordInfos", "deleteAppPasswordInfo"));
 
 
     private Activity activity;
+    // Kept callback receiving the database change events, if subscribed
+    private volatile CallbackContext changesCallbackContext = null;
+    private final PasswordManager.OnDatabaseChangedListener changeListener = this::sendChangeEvent;
+
+    /**
+     * Records the duration of an action in the metrics, from its call to its final result.
+     */
+    private class TimedCallbackContext extends CallbackContext {
+        private final String action;
+        private final CallbackContext callbackContext;
+        private final long startTime = System.nanoTime();
+        // Results can be sent from any thread
+        private final AtomicBoolean recorded = new AtomicBoolean(false);
+
+        TimedCallbackContext(String action, CallbackContext callbackContext) {
+            super(callbackContext.getCallbackId(), webView);
+            this.action = action;
+            this.callbackContext = callbackContext;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            if (!pluginResult.getKeepCallback() && recorded.compareAndSet(false, true)) {
+                PasswordMetrics.recordAction(action, startTime);
+            }
+            callbackContext.sendPluginResult(pluginResult);
+        }
+    }
 
     public class BooleanWithReason {
         public boolean value;
@@ -81,22 +121,50 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         super.onDestroy();
     }
 
+    /**
+     * The web view was reloaded: its callbacks don't exist any more.
+     */
+    @Override
+    public void onReset() {
+        stopChangeEvents();
+        super.onReset();
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        callbackContext = new TimedCallbackContext(action, callbackContext);
         try {
             switch (action) {
                 case "setPasswordInfo":
                     this.setPasswordInfo(args, callbackContext);
                     break;
+                case "setPasswordInfos":
+                    this.setPasswordInfos(args, callbackContext);
+                    break;
                 case "getPasswordInfo":
                     this.getPasswordInfo(args, callbackContext);
                     break;
+                case "getPasswordInfos":
+                    this.getPasswordInfos(args, callbackContext);
+                    break;
+                case "getAppPasswordInfo":
+                    this.getAppPasswordInfo(args, callbackContext);
+                    break;
                 case "getAllPasswordInfo":
                     this.getAllPasswordInfo(args, callbackContext);
                     break;
+                case "getPasswordInfoPage":
+                    this.getPasswordInfoPage(args, callbackContext);
+                    break;
+                case "searchPasswordInfo":
+                    this.searchPasswordInfo(args, callbackContext);
+                    break;
                 case "deletePasswordInfo":
                     this.deletePasswordInfo(args, callbackContext);
                     break;
+                case "deletePasswordInfos":
+                    this.deletePasswordInfos(args, callbackContext);
+                    break;
                 case "deleteAppPasswordInfo":
                     this.deleteAppPasswordInfo(args, callbackContext);
                     break;
@@ -121,6 +189,18 @@ public class PasswordManagerPlugin extends CordovaPlugin {
                 case "setLanguage":
                     this.setLanguage(args, callbackContext);
                     break;
+                case "subscribeToChanges":
+                    this.subscribeToChanges(args, callbackContext);
+                    break;
+                case "unsubscribeFromChanges":
+                    this.unsubscribeFromChanges(args, callbackContext);
+                    break;
+                case "batch":
+                    this.batch(args, callbackContext);
+                    break;
+                case "getMetrics":
+                    this.getMetrics(args, callbackContext);
+                    break;
                 default:
                     return false;
             }
@@ -170,8 +250,18 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         }
     }
 
+    private static ArrayList<String> getStrings(JSONArray array) throws JSONException {
+        ArrayList<String> strings = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            strings.add(array.getString(i));
+        }
+        return strings;
+    }
+
     private void setPasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
         JSONObject info = args.getJSONObject(0);
+        JSONObject optionsJson = args.isNull(1) ? null : args.getJSONObject(1);
+        PasswordSetInfoOptions options = null;
 
         PasswordInfo passwordInfo = PasswordInfoBuilder.buildFromType(info);
         if (passwordInfo == null) {
@@ -179,8 +269,72 @@ public class PasswordManagerPlugin extends CordovaPlugin {
             return;
         }
 
+        try {
+            if (optionsJson != null) {
+                options = PasswordSetInfoOptions.fromJsonObject(optionsJson);
+            }
+        }
+        catch (Exception e) {
+            // Invalid options passed? We'll use default options
+        }
+
+        if (options == null) {
+            options = new PasswordSetInfoOptions(); // default options
+        }
+
+        JSONObject result = new JSONObject();
+        PasswordManager.getSharedInstance(this).setPasswordInfo(passwordInfo, "", "", options, new PasswordManager.OnPasswordInfoSetListener(){
+            @Override
+            public void onPasswordInfoSet() {
+                try {
+                    result.put("couldSet", true);
+                }
+                catch (JSONException ignored) {}
+                sendSuccess(callbackContext, result);
+            }
+
+            @Override
+            public void onCancel() {
+                sendError(callbackContext, buildCancellationError());
+            }
+
+            @Override
+            public void onError(String error) {
+                sendError(callbackContext, buildGenericError(error));
+            }
+        });
+    }
+
+    private void setPasswordInfos(JSONArray args, CallbackContext callbackContext) throws Exception {
+        JSONArray infosJson = args.getJSONArray(0);
+        JSONObject optionsJson = args.isNull(1) ? null : args.getJSONObject(1);
+        PasswordSetInfoOptions options = null;
+
+        ArrayList<PasswordInfo> passwordInfos = new ArrayList<>();
+        for (int i = 0; i < infosJson.length(); i++) {
+            PasswordInfo passwordInfo = PasswordInfoBuilder.buildFromType(infosJson.getJSONObject(i));
+            if (passwordInfo == null) {
+                sendError(callbackContext, "setPasswordInfos", "Invalid JSON object for password info at index " + i);
+                return;
+            }
+            passwordInfos.add(passwordInfo);
+        }
+
+        try {
+            if (optionsJson != null) {
+                options = PasswordSetInfoOptions.fromJsonObject(optionsJson);
+            }
+        }
+        catch (Exception e) {
+            // Invalid options passed? We'll use default options
+        }
+
+        if (options == null) {
+            options = new PasswordSetInfoOptions(); // default options
+        }
+
         JSONObject result = new JSONObject();
-        PasswordManager.getSharedInstance(this).setPasswordInfo(passwordInfo, "", "", new PasswordManager.OnPasswordInfoSetListener(){
+        PasswordManager.getSharedInstance(this).setPasswordInfos(passwordInfos, "", "", options, new PasswordManager.OnPasswordInfoSetListener(){
             @Override
             public void onPasswordInfoSet() {
                 try {
@@ -205,6 +359,17 @@ public class PasswordManagerPlugin extends CordovaPlugin {
     private void getPasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
         String key = args.getString(0);
         JSONObject optionsJson = args.isNull(1) ? null : args.getJSONObject(1);
+        getPasswordInfo(key, "", optionsJson, callbackContext);
+    }
+
+    private void getAppPasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
+        String targetAppID = args.getString(0);
+        String key = args.getString(1);
+        JSONObject optionsJson = args.isNull(2) ? null : args.getJSONObject(2);
+        getPasswordInfo(key, targetAppID, optionsJson, callbackContext);
+    }
+
+    private void getPasswordInfo(String key, String targetAppID, JSONObject optionsJson, CallbackContext callbackContext) throws Exception {
         PasswordGetInfoOptions options = null;
 
         try {
@@ -221,7 +386,7 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         }
 
         JSONObject result = new JSONObject();
-        PasswordManager.getSharedInstance(this).getPasswordInfo(key, "", "", options, new PasswordManager.OnPasswordInfoRetrievedListener() {
+        PasswordManager.getSharedInstance(this).getPasswordInfo(key, "", "", targetAppID, options, new PasswordManager.OnPasswordInfoRetrievedListener() {
             @Override
             public void onPasswordInfoRetrieved(PasswordInfo info) {
                 try {
@@ -246,7 +411,70 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         });
     }
 
+    private void getPasswordInfos(JSONArray args, CallbackContext callbackContext) throws Exception {
+        ArrayList<String> keys = getStrings(args.getJSONArray(0));
+        JSONObject optionsJson = args.isNull(1) ? null : args.getJSONObject(1);
+        PasswordGetInfoOptions options = null;
+
+        try {
+            if (optionsJson != null) {
+                options = PasswordGetInfoOptions.fromJsonObject(optionsJson);
+            }
+        }
+        catch (Exception e) {
+            // Invalid options passed? We'll use default options
+        }
+
+        if (options == null) {
+            options = new PasswordGetInfoOptions(); // default options
+        }
+
+        JSONObject result = new JSONObject();
+        PasswordManager.getSharedInstance(this).getPasswordInfos(keys, "", "", "", options, new PasswordManager.OnAllPasswordInfoRetrievedListener() {
+            @Override
+            public void onAllPasswordInfoRetrieved(ArrayList<PasswordInfo> infos) {
+                try {
+                    JSONArray passwordInfo = new JSONArray();
+                    for (PasswordInfo info : infos) {
+                        if (info != null)
+                            passwordInfo.put(info.asJsonObject());
+                        else
+                            passwordInfo.put(JSONObject.NULL);
+                    }
+
+                    result.put("passwordInfo", passwordInfo);
+
+                    sendSuccess(callbackContext, result);
+                }
+                catch (Exception e) {
+                    sendError(callbackContext, "getPasswordInfos", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                sendError(callbackContext, buildCancellationError());
+            }
+
+            @Override
+            public void onError(String error) {
+                sendError(callbackContext, buildGenericError(error));
+            }
+        });
+    }
+
     private void getAllPasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
+        JSONObject optionsJson = args.isNull(0) ? null : args.getJSONObject(0);
+        PasswordGetAllInfoOptions options = optionsJson != null ? PasswordGetAllInfoOptions.fromJsonObject(optionsJson) : new PasswordGetAllInfoOptions();
+
+        if (options.metadataOnly) {
+            // All password info in a single page
+            PasswordGetPageOptions pageOptions = new PasswordGetPageOptions();
+            pageOptions.pageSize = Integer.MAX_VALUE;
+            getPasswordInfoMetadataPage(pageOptions, "allPasswordInfo", "getAllPasswordInfo", callbackContext);
+            return;
+        }
+
         JSONObject result = new JSONObject();
         PasswordManager.getSharedInstance(this).getAllPasswordInfo("", "", new PasswordManager.OnAllPasswordInfoRetrievedListener() {
             @Override
@@ -278,6 +506,118 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         });
     }
 
+    private void getPasswordInfoPage(JSONArray args, CallbackContext callbackContext) throws Exception {
+        JSONObject optionsJson = args.isNull(0) ? null : args.getJSONObject(0);
+        PasswordGetPageOptions options = optionsJson != null ? PasswordGetPageOptions.fromJsonObject(optionsJson) : new PasswordGetPageOptions();
+
+        if (options.metadataOnly) {
+            getPasswordInfoMetadataPage(options, "passwordInfo", "getPasswordInfoPage", callbackContext);
+            return;
+        }
+
+        JSONObject result = new JSONObject();
+        PasswordManager.getSharedInstance(this).getPasswordInfoPage("", "", options, new PasswordManager.OnPasswordInfoPageRetrievedListener() {
+            @Override
+            public void onPasswordInfoPageRetrieved(ArrayList<PasswordInfo> infos, String nextCursor) {
+                try {
+                    JSONArray passwordInfo = new JSONArray();
+                    for (PasswordInfo info : infos) {
+                        passwordInfo.put(info.asJsonObject());
+                    }
+
+                    result.put("passwordInfo", passwordInfo);
+                    if (nextCursor != null)
+                        result.put("nextCursor", nextCursor);
+
+                    sendSuccess(callbackContext, result);
+                }
+                catch (Exception e) {
+                    sendError(callbackContext, "getPasswordInfoPage", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                sendError(callbackContext, buildCancellationError());
+            }
+
+            @Override
+            public void onError(String error) {
+                sendError(callbackContext, buildGenericError(error));
+            }
+        });
+    }
+
+    private void getPasswordInfoMetadataPage(PasswordGetPageOptions options, String resultKey, String action, CallbackContext callbackContext) throws Exception {
+        JSONObject result = new JSONObject();
+        PasswordManager.getSharedInstance(this).getPasswordInfoMetadataPage("", "", options, new PasswordManager.OnPasswordInfoMetadataPageRetrievedListener() {
+            @Override
+            public void onPasswordInfoMetadataPageRetrieved(ArrayList<PasswordInfoMetadata> metadata, String nextCursor) {
+                try {
+                    JSONArray passwordInfo = new JSONArray();
+                    for (PasswordInfoMetadata infoMetadata : metadata) {
+                        passwordInfo.put(infoMetadata.asJsonObject());
+                    }
+
+                    result.put(resultKey, passwordInfo);
+                    if (nextCursor != null)
+                        result.put("nextCursor", nextCursor);
+
+                    sendSuccess(callbackContext, result);
+                }
+                catch (Exception e) {
+                    sendError(callbackContext, action, e.getMessage());
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                sendError(callbackContext, buildCancellationError());
+            }
+
+            @Override
+            public void onError(String error) {
+                sendError(callbackContext, buildGenericError(error));
+            }
+        });
+    }
+
+    private void searchPasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
+        String query = args.getString(0);
+        JSONObject optionsJson = args.isNull(1) ? null : args.getJSONObject(1);
+        PasswordSearchOptions options = optionsJson != null ? PasswordSearchOptions.fromJsonObject(optionsJson) : new PasswordSearchOptions();
+
+        JSONObject result = new JSONObject();
+        PasswordManager.getSharedInstance(this).searchPasswordInfo(query, "", "", options, new PasswordManager.OnAllPasswordInfoRetrievedListener() {
+            @Override
+            public void onAllPasswordInfoRetrieved(ArrayList<PasswordInfo> infos) {
+                try {
+                    JSONArray matchingPasswordInfo = new JSONArray();
+                    for (PasswordInfo info : infos) {
+                        matchingPasswordInfo.put(info.asJsonObject());
+                    }
+
+                    result.put("matchingPasswordInfo", matchingPasswordInfo);
+
+                    sendSuccess(callbackContext, result);
+                }
+                catch (Exception e) {
+                    sendError(callbackContext, "searchPasswordInfo", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                sendError(callbackContext, buildCancellationError());
+            }
+
+            @Override
+            public void onError(String error) {
+                sendError(callbackContext, buildGenericError(error));
+            }
+        });
+    }
+
     private void deletePasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
         String key = args.getString(0);
 
@@ -304,6 +644,32 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         });
     }
 
+    private void deletePasswordInfos(JSONArray args, CallbackContext callbackContext) throws Exception {
+        ArrayList<String> keys = getStrings(args.getJSONArray(0));
+
+        JSONObject result = new JSONObject();
+        PasswordManager.getSharedInstance(this).deletePasswordInfos(keys, "", "", "", new PasswordManager.OnPasswordInfoDeletedListener() {
+            @Override
+            public void onPasswordInfoDeleted() {
+                try {
+                    result.put("couldDelete", true);
+                }
+                catch (JSONException ignored) {}
+                sendSuccess(callbackContext, result);
+            }
+
+            @Override
+            public void onCancel() {
+                sendError(callbackContext, buildCancellationError());
+            }
+
+            @Override
+            public void onError(String error) {
+                sendError(callbackContext, buildGenericError(error));
+            }
+        });
+    }
+
     private void deleteAppPasswordInfo(JSONArray args, CallbackContext callbackContext) throws Exception {
         String targetAppID = args.getString(0);
         String key = args.getString(1);
@@ -418,6 +784,191 @@ public class PasswordManagerPlugin extends CordovaPlugin {
         sendSuccess(callbackContext, result);
     }
 
+    /**
+     * Durations of the plugin actions and of the slow steps of the password manager, and event counters,
+     * since the application started.
+     */
+    private void getMetrics(JSONArray args, CallbackContext callbackContext) throws Exception {
+        sendSuccess(callbackContext, PasswordMetrics.asJsonObject());
+    }
+
+    /**
+     * Keeps the given callback to send it all following database change events, starting with a "subscribed"
+     * event holding the current version. A new subscription replaces the previous one.
+     */
+    private void subscribeToChanges(JSONArray args, CallbackContext callbackContext) throws Exception {
+        PasswordManager passwordManager = PasswordManager.getSharedInstance(this);
+        CallbackContext previousCallbackContext;
+        synchronized (this) {
+            previousCallbackContext = changesCallbackContext;
+            changesCallbackContext = callbackContext;
+        }
+
+        if (previousCallbackContext != null)
+            sendSuccess(previousCallbackContext, new JSONObject());
+        else
+            passwordManager.addDatabaseChangedListener(changeListener);
+
+        JSONObject event = new JSONObject();
+        event.put("type", "subscribed");
+        event.put("version", passwordManager.getChangesVersion());
+        sendChangeEvent(event);
+    }
+
+    private void unsubscribeFromChanges(JSONArray args, CallbackContext callbackContext) throws Exception {
+        stopChangeEvents();
+
+        JSONObject result = new JSONObject();
+        sendSuccess(callbackContext, result);
+    }
+
+    private void stopChangeEvents() {
+        CallbackContext callbackContext;
+        synchronized (this) {
+            callbackContext = changesCallbackContext;
+            changesCallbackContext = null;
+        }
+        if (callbackContext == null)
+            return;
+
+        PasswordManager.getSharedInstance(this).removeDatabaseChangedListener(changeListener);
+        // Releases the kept callback
+        sendSuccess(callbackContext, new JSONObject());
+    }
+
+    /**
+     * Called by the password manager while it holds its own locks: must not wait for any lock of this plugin.
+     */
+    private void sendChangeEvent(PasswordChangeEvent event) {
+        try {
+            sendChangeEvent(event.asJsonObject());
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Unable to send password database change event: " + e.getMessage());
+        }
+    }
+
+    private void sendChangeEvent(JSONObject event) {
+        CallbackContext callbackContext = changesCallbackContext;
+        if (callbackContext == null)
+            return;
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, event);
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+
+    /**
+     * Runs several actions received in a single bridge call, and returns all their results at once, in the same
+     * order. Each action starts once the previous one returned its result, so only the first one that needs the
+     * database may have to unlock it. Each action gets its own result: if the master password prompt is
+     * cancelled, only that action is cancelled, and each following action prompts again as it would have
+     * done if called on its own.
+     */
+    private void batch(JSONArray args, CallbackContext callbackContext) throws Exception {
+        JSONArray operations = args.getJSONArray(0);
+        runBatchOperations(operations, new JSONArray(), callbackContext);
+    }
+
+    /**
+     * Runs the remaining operations of a batch, one after the other. Operations that complete synchronously
+     * are run in a loop. When an operation completes later, on another thread, its result resumes the batch
+     * from there.
+     */
+    private void runBatchOperations(JSONArray operations, JSONArray results, CallbackContext callbackContext) {
+        try {
+            while (results.length() < operations.length()) {
+                JSONObject operation = operations.getJSONObject(results.length());
+                String action = operation.getString("action");
+                JSONArray operationArgs = operation.isNull("args") ? new JSONArray() : operation.getJSONArray("args");
+
+                BatchOperationCallbackContext operationContext = new BatchOperationCallbackContext(operations, results, callbackContext);
+                if (!BATCHABLE_ACTIONS.contains(action) || !execute(action, operationArgs, operationContext)) {
+                    sendError(operationContext, buildGenericError("Unsupported batch action " + action));
+                }
+
+                if (!operationContext.completedSynchronously())
+                    return;
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("results", results);
+            sendSuccess(callbackContext, result);
+        }
+        catch (JSONException e) {
+            sendError(callbackContext, "batch", e.getMessage());
+        }
+    }
+
+    /**
+     * Collects the final result of one batch operation. Each operation gets its own result, whatever the
+     * result of the others.
+     */
+    private class BatchOperationCallbackContext extends CallbackContext {
+        private static final int RUNNING = 0;
+        private static final int COMPLETED = 1;
+        // The batch loop returned before the result, which resumes the batch
+        private static final int RESUMES_BATCH = 2;
+
+        private final JSONArray operations;
+        private final JSONArray results;
+        private final CallbackContext batchCallbackContext;
+        private final AtomicBoolean resultReceived = new AtomicBoolean(false);
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        BatchOperationCallbackContext(JSONArray operations, JSONArray results, CallbackContext batchCallbackContext) {
+            super(batchCallbackContext.getCallbackId(), webView);
+            this.operations = operations;
+            this.results = results;
+            this.batchCallbackContext = batchCallbackContext;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            // Only final results are returned
+            if (pluginResult.getKeepCallback() || !resultReceived.compareAndSet(false, true))
+                return;
+
+            try {
+                results.put(buildBatchOperationResult(pluginResult));
+            }
+            catch (JSONException e) {
+                sendError(batchCallbackContext, "batch", e.getMessage());
+                return;
+            }
+
+            if (state.getAndSet(COMPLETED) == RESUMES_BATCH)
+                runBatchOperations(operations, results, batchCallbackContext);
+        }
+
+        /**
+         * Called by the batch loop once the operation was started. Returns false if its result is not there
+         * yet: the batch is then resumed by the result.
+         */
+        boolean completedSynchronously() {
+            return !state.compareAndSet(RUNNING, RESUMES_BATCH);
+        }
+    }
+
+    private static JSONObject buildBatchOperationResult(PluginResult pluginResult) throws JSONException {
+        Object value;
+        if (pluginResult.getMessageType() == PluginResult.MESSAGE_TYPE_STRING)
+            value = pluginResult.getStrMessage();
+        else
+            value = new JSONTokener(pluginResult.getMessage()).nextValue();
+
+        JSONObject result = new JSONObject();
+        if (pluginResult.getStatus() == PluginResult.Status.OK.ordinal()) {
+            result.put("status", "success");
+            result.put("result", value);
+        }
+        else {
+            result.put("status", "error");
+            result.put("error", value);
+        }
+        return result;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent intent) {
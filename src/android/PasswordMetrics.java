@@ -0,0 +1,198 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations of the slow steps of the password manager (key derivation, encryption, database parsing and saving,
+ * master password prompt, plugin actions) and event counters, to find out where time goes on slow devices.
+ *
+ * Recording a duration or a count doesn't lock: durations are counted in preallocated log-linear buckets, HDR
+ * histogram style, with a precision of 1/8 of the value. Recording a step or a count doesn't allocate anything.
+ * Timing a plugin action allocates a callback wrapper for each call, and a histogram on the first call of each
+ * action.
+ */
+class PasswordMetrics {
+    enum Phase {
+        KDF("kdf"),
+        AES_DECRYPT("aesDecrypt"),
+        AES_ENCRYPT("aesEncrypt"),
+        LEGACY_READ("legacyRead"),
+        DATABASE_PARSE("databaseParse"),
+        DATABASE_SAVE("databaseSave"),
+        CHANGES_SAVE("changesSave"),
+        MASTER_PASSWORD_PROMPT("masterPasswordPrompt");
+
+        final String mValue;
+
+        Phase(String value) {
+            mValue = value;
+        }
+    }
+
+    enum Counter {
+        UNLOCKS("unlocks"),
+        PROMPTS("prompts"),
+        SAVES("saves"),
+        BYTES_WRITTEN("bytesWritten");
+
+        final String mValue;
+
+        Counter(String value) {
+            mValue = value;
+        }
+    }
+
+    /**
+     * Counts of durations in microseconds. Values below 2^SUB_BUCKET_BITS have their own bucket, larger values
+     * share a bucket with the values having the same SUB_BUCKET_BITS + 1 highest bits.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Up to about 12 days
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong totalCount = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long micros) {
+            if (micros < 0)
+                micros = 0;
+
+            counts.incrementAndGet(getBucketIndex(micros));
+            totalCount.incrementAndGet();
+            totalMicros.addAndGet(micros);
+
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        private static int getBucketIndex(long micros) {
+            int exponent = 63 - Long.numberOfLeadingZeros(micros | 1);
+            if (exponent < SUB_BUCKET_BITS)
+                return (int) micros;
+
+            int index = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+            return Math.min(index, BUCKETS - 1);
+        }
+
+        private static long getBucketLowestValue(int index) {
+            if (index < 2 * SUB_BUCKETS)
+                return index;
+
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        /**
+         * Highest value of the bucket holding the given percentile of the recorded durations.
+         */
+        private long getPercentile(double percentile, long count) {
+            long threshold = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long cumulatedCount = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulatedCount += counts.get(i);
+                if (cumulatedCount >= threshold) {
+                    long highestValue = i + 1 < BUCKETS ? getBucketLowestValue(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(highestValue, maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+
+        JSONObject asJsonObject() throws JSONException {
+            long count = totalCount.get();
+
+            JSONObject jsonObj = new JSONObject();
+            jsonObj.put("count", count);
+            if (count > 0) {
+                jsonObj.put("meanUs", totalMicros.get() / count);
+                jsonObj.put("p50Us", getPercentile(50, count));
+                jsonObj.put("p90Us", getPercentile(90, count));
+                jsonObj.put("p99Us", getPercentile(99, count));
+                jsonObj.put("maxUs", maxMicros.get());
+            }
+            return jsonObj;
+        }
+    }
+
+    private static final LatencyHistogram[] phaseHistograms = new LatencyHistogram[Phase.values().length];
+    private static final Map<String, LatencyHistogram> actionHistograms = new ConcurrentHashMap<>();
+    private static final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    static {
+        for (int i = 0; i < phaseHistograms.length; i++) {
+            phaseHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private PasswordMetrics() {
+    }
+
+    /**
+     * @param startTime System.nanoTime() at the beginning of the phase.
+     */
+    static void record(Phase phase, long startTime) {
+        phaseHistograms[phase.ordinal()].record((System.nanoTime() - startTime) / 1000);
+    }
+
+    /**
+     * Records the duration of a plugin action, from its call to its final result.
+     *
+     * @param startTime System.nanoTime() when the action was called.
+     */
+    static void recordAction(String action, long startTime) {
+        LatencyHistogram histogram = actionHistograms.get(action);
+        if (histogram == null) {
+            // Only allocated on the first call of each action
+            actionHistograms.putIfAbsent(action, new LatencyHistogram());
+            histogram = actionHistograms.get(action);
+        }
+        histogram.record((System.nanoTime() - startTime) / 1000);
+    }
+
+    static void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    static void add(Counter counter, long value) {
+        counters.addAndGet(counter.ordinal(), value);
+    }
+
+    static JSONObject asJsonObject() throws JSONException {
+        JSONObject countersJson = new JSONObject();
+        for (Counter counter : Counter.values()) {
+            countersJson.put(counter.mValue, counters.get(counter.ordinal()));
+        }
+        countersJson.put("ciphersCreated", CryptoService.getCreatedCiphersCount());
+        countersJson.put("secretKeyFactoriesCreated", CryptoService.getCreatedSecretKeyFactoriesCount());
+        countersJson.put("secureRandomsCreated", CryptoService.getCreatedSecureRandomsCount());
+
+        JSONObject phasesJson = new JSONObject();
+        for (Phase phase : Phase.values()) {
+            phasesJson.put(phase.mValue, phaseHistograms[phase.ordinal()].asJsonObject());
+        }
+
+        JSONObject actionsJson = new JSONObject();
+        for (Map.Entry<String, LatencyHistogram> entry : actionHistograms.entrySet()) {
+            actionsJson.put(entry.getKey(), entry.getValue().asJsonObject());
+        }
+
+        JSONObject jsonObj = new JSONObject();
+        jsonObj.put("counters", countersJson);
+        jsonObj.put("phases", phasesJson);
+        jsonObj.put("actions", actionsJson);
+        return jsonObj;
+    }
+}
@@ -0,0 +1,30 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+public enum PasswordSaveDurability {
+    /**
+     * The operation completes once the change is written and synced to the device storage.
+     */
+    SAVED_TO_DISK(0),
+
+    /**
+     * The operation completes as soon as the change is applied to the unlocked database. The change is
+     * written to the device storage shortly after, together with other changes made in the meantime.
+     * It is still written before the database gets locked, or before the application exits.
+     */
+    APPLIED_IN_MEMORY(1);
+
+    private int mValue;
+
+    PasswordSaveDurability(int value) {
+        mValue = value;
+    }
+
+    public static PasswordSaveDurability fromValue(int value) {
+        for(PasswordSaveDurability t : values()) {
+            if (t.mValue == value) {
+                return t;
+            }
+        }
+        return SAVED_TO_DISK;
+    }
+}
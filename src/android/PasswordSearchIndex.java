@@ -0,0 +1,209 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.elastos.essentials.plugins.passwordmanager.passwordinfo.PasswordInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In memory index of the searchable fields of password entries (display name, account identifier, wifi SSID,
+ * bank name...), so that search as you type doesn't have to scan and decrypt the whole database.
+ *
+ * Queries are split in words, and entries must match all of them. Words of GRAM_SIZE characters or more match
+ * anywhere in a field: candidates are the entries containing the word's least common trigram, and are then
+ * checked for the whole word. Shorter words match the beginning of the fields' words.
+ *
+ * The index only holds non secret fields. It's kept by the unlocked database and dropped when it's locked.
+ */
+class PasswordSearchIndex {
+    private static final int GRAM_SIZE = 3;
+
+    /**
+     * Normalized searchable content of an indexed entry.
+     */
+    private static class IndexedFields {
+        final PasswordEntry entry;
+        final String[] fields;
+        final String[] words;
+
+        IndexedFields(PasswordEntry entry, String[] fields, String[] words) {
+            this.entry = entry;
+            this.fields = fields;
+            this.words = words;
+        }
+    }
+
+    private final HashMap<PasswordEntry, IndexedFields> indexedEntries = new HashMap<>();
+    // Entries containing each trigram of their fields
+    private final HashMap<String, HashSet<IndexedFields>> gramEntries = new HashMap<>();
+    // Entries containing each word of their fields, sorted for prefix lookups
+    private final TreeMap<String, HashSet<IndexedFields>> wordEntries = new TreeMap<>();
+
+    void add(PasswordEntry entry, PasswordInfo info) {
+        remove(entry);
+
+        ArrayList<String> fields = info.getSearchableFields();
+        HashSet<String> grams = new HashSet<>();
+        HashSet<String> words = new HashSet<>();
+        String[] normalizedFields = new String[fields.size()];
+        for (int i = 0; i < normalizedFields.length; i++) {
+            String field = normalize(fields.get(i));
+            normalizedFields[i] = field;
+
+            for (int j = 0; j + GRAM_SIZE <= field.length(); j++) {
+                grams.add(field.substring(j, j + GRAM_SIZE));
+            }
+            for (String word : splitWords(field)) {
+                words.add(word);
+            }
+        }
+
+        IndexedFields indexedFields = new IndexedFields(entry, normalizedFields, words.toArray(new String[0]));
+        for (String gram : grams) {
+            addToPostings(gramEntries, gram, indexedFields);
+        }
+        for (String word : words) {
+            addToPostings(wordEntries, word, indexedFields);
+        }
+        indexedEntries.put(entry, indexedFields);
+    }
+
+    void remove(PasswordEntry entry) {
+        IndexedFields indexedFields = indexedEntries.remove(entry);
+        if (indexedFields == null) {
+            return;
+        }
+
+        for (String field : indexedFields.fields) {
+            for (int j = 0; j + GRAM_SIZE <= field.length(); j++) {
+                removeFromPostings(gramEntries, field.substring(j, j + GRAM_SIZE), indexedFields);
+            }
+        }
+        for (String word : indexedFields.words) {
+            removeFromPostings(wordEntries, word, indexedFields);
+        }
+    }
+
+    /**
+     * Entries matching all the words of the query. An empty query matches all entries.
+     */
+    ArrayList<PasswordEntry> search(String query) {
+        ArrayList<String> queryWords = splitWords(normalize(query));
+        if (queryWords.isEmpty()) {
+            return new ArrayList<>(indexedEntries.keySet());
+        }
+
+        // Start from the most selective word, and check the other ones on its candidates only
+        Collection<IndexedFields> candidates = null;
+        for (String word : queryWords) {
+            Collection<IndexedFields> wordCandidates = getCandidates(word);
+            if (candidates == null || wordCandidates.size() < candidates.size()) {
+                candidates = wordCandidates;
+            }
+        }
+
+        ArrayList<PasswordEntry> matches = new ArrayList<>();
+        for (IndexedFields indexedFields : candidates) {
+            boolean matchesAll = true;
+            for (String word : queryWords) {
+                if (!matches(indexedFields, word)) {
+                    matchesAll = false;
+                    break;
+                }
+            }
+            if (matchesAll) {
+                matches.add(indexedFields.entry);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Entries that may match the given word: all matches, plus possibly some entries that only contain one of
+     * its trigrams.
+     */
+    private Collection<IndexedFields> getCandidates(String word) {
+        if (word.length() < GRAM_SIZE) {
+            HashSet<IndexedFields> candidates = new HashSet<>();
+            SortedMap<String, HashSet<IndexedFields>> prefixedWords = wordEntries.subMap(word, word + Character.MAX_VALUE);
+            for (HashSet<IndexedFields> entries : prefixedWords.values()) {
+                candidates.addAll(entries);
+            }
+            return candidates;
+        }
+
+        HashSet<IndexedFields> candidates = null;
+        for (int j = 0; j + GRAM_SIZE <= word.length(); j++) {
+            HashSet<IndexedFields> entries = gramEntries.get(word.substring(j, j + GRAM_SIZE));
+            if (entries == null) {
+                // Some trigram is nowhere: no entry can match
+                return new HashSet<>();
+            }
+            if (candidates == null || entries.size() < candidates.size()) {
+                candidates = entries;
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean matches(IndexedFields indexedFields, String word) {
+        if (word.length() < GRAM_SIZE) {
+            for (String fieldWord : indexedFields.words) {
+                if (fieldWord.startsWith(word))
+                    return true;
+            }
+        }
+        else {
+            for (String field : indexedFields.fields) {
+                if (field.contains(word))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    private static ArrayList<String> splitWords(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            }
+            else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static void addToPostings(Map<String, HashSet<IndexedFields>> postings, String term, IndexedFields entry) {
+        HashSet<IndexedFields> entries = postings.get(term);
+        if (entries == null) {
+            entries = new HashSet<>();
+            postings.put(term, entries);
+        }
+        entries.add(entry);
+    }
+
+    private static void removeFromPostings(Map<String, HashSet<IndexedFields>> postings, String term, IndexedFields entry) {
+        HashSet<IndexedFields> entries = postings.get(term);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONObject;
+
+public class PasswordSearchOptions {
+    // Only password info of this type are returned, if set
+    public PasswordType type = null;
+    // Maximum number of returned password info, 0 for no limit
+    public int maxResults = 0;
+
+    public PasswordSearchOptions() {
+    }
+
+    public static PasswordSearchOptions fromJsonObject(JSONObject jsonObject) throws Exception {
+        PasswordSearchOptions options = new PasswordSearchOptions();
+
+        if (jsonObject.has("type"))
+            options.type = PasswordType.fromValue(jsonObject.getInt("type"));
+
+        if (jsonObject.has("maxResults"))
+            options.maxResults = jsonObject.getInt("maxResults");
+
+        return options;
+    }
+}
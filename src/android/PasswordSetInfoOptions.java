@@ -0,0 +1,19 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import org.json.JSONObject;
+
+public class PasswordSetInfoOptions {
+    public PasswordSaveDurability durability = PasswordSaveDurability.SAVED_TO_DISK;
+
+    public PasswordSetInfoOptions() {
+    }
+
+    public static PasswordSetInfoOptions fromJsonObject(JSONObject jsonObject) throws Exception {
+        PasswordSetInfoOptions options = new PasswordSetInfoOptions();
+
+        if (jsonObject.has("durability"))
+            options.durability = PasswordSaveDurability.fromValue(jsonObject.getInt("durability"));
+
+        return options;
+    }
+}
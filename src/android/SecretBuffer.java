@@ -0,0 +1,86 @@
+package org.elastos.essentials.plugins.passwordmanager;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Secret (master password, data key) kept while a database is unlocked.
+ *
+ * Strings can't be erased, and arrays can be copied around by a moving garbage collector. The secret is instead
+ * stored in a direct buffer, which is never moved, and explicitly wiped when the database is locked. This limits
+ * the copies left in memory, but doesn't keep the secret out of the java heap: on ART, direct buffers are backed
+ * by non-movable heap arrays. Copies returned by getChars() and getBytes() are meant to be short lived, and wiped
+ * by the caller after use.
+ *
+ * The biometric unlock is not covered: the fingerprint plugin only takes and returns the master password as a
+ * string, which stays in memory until it's garbage collected.
+ */
+class SecretBuffer {
+    // Null once wiped
+    private ByteBuffer buffer;
+
+    private SecretBuffer(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Copies the given characters. The caller remains in charge of wiping its own array.
+     */
+    static SecretBuffer copyOf(char[] chars) {
+        SecretBuffer secret = new SecretBuffer(chars.length * 2);
+        secret.buffer.asCharBuffer().put(chars);
+        return secret;
+    }
+
+    /**
+     * Copies the given bytes. The caller remains in charge of wiping its own array.
+     */
+    static SecretBuffer copyOf(byte[] bytes) {
+        SecretBuffer secret = new SecretBuffer(bytes.length);
+        secret.buffer.duplicate().put(bytes);
+        return secret;
+    }
+
+    /**
+     * Secret as characters, for a secret created from characters.
+     */
+    synchronized char[] getChars() {
+        checkNotWiped();
+        char[] chars = new char[buffer.capacity() / 2];
+        buffer.asCharBuffer().get(chars);
+        return chars;
+    }
+
+    /**
+     * Secret as bytes, for a secret created from bytes.
+     */
+    synchronized byte[] getBytes() {
+        checkNotWiped();
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Overwrites the secret with zeros. The secret can't be used any more afterwards.
+     */
+    synchronized void wipe() {
+        if (buffer == null) {
+            return;
+        }
+
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer = null;
+    }
+
+    synchronized boolean isWiped() {
+        return buffer == null;
+    }
+
+    private void checkNotWiped() {
+        if (buffer == null) {
+            throw new IllegalStateException("Secret was wiped");
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.elastos.essentials.plugins.passwordmanager.dialogs;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
+import android.text.Editable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.WindowManager;
@@ -17,6 +18,8 @@ import org.elastos.essentials.plugins.passwordmanager.FakeR;
 import org.elastos.essentials.plugins.passwordmanager.PasswordManager;
 import org.elastos.essentials.plugins.passwordmanager.UIStyling;
 
+import java.util.Arrays;
+
 import static android.view.inputmethod.EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING;
 
 public class MasterPasswordCreator extends AlertDialog {
@@ -25,7 +28,10 @@ public class MasterPasswordCreator extends AlertDialog {
     }
 
     public interface OnNextClickedListener {
-        void onNextClicked(String password);
+        /**
+         * The password array is wiped by the caller once the listener returns.
+         */
+        void onNextClicked(char[] password);
     }
 
     public interface OnDontUseMasterPasswordListener {
@@ -128,16 +134,27 @@ public class MasterPasswordCreator extends AlertDialog {
             });
 
             btNext.setOnClickListener(v -> {
-                String password = etPassword.getText().toString();
-                String passwordRepeat = etPasswordRepeat.getText().toString();
+                // Passwords are read as characters, not strings, so that they can be wiped after use
+                char[] password = getPassword(etPassword);
+                char[] passwordRepeat = getPassword(etPasswordRepeat);
+                boolean passwordsMatch = Arrays.equals(password, passwordRepeat);
+                Arrays.fill(passwordRepeat, '\0');
 
                 // Only allow validating the popup if some password is set
-                if (!password.equals("") && password.equals(passwordRepeat)) {
+                if (password.length > 0 && passwordsMatch) {
                     alertDialog.dismiss();
-                    onNextClickedListener.onNextClicked(password);
+                    try {
+                        onNextClickedListener.onNextClicked(password);
+                    }
+                    finally {
+                        Arrays.fill(password, '\0');
+                    }
                 }
-                else if (!password.equals(passwordRepeat)) {
-                    lblWrongPassword.setVisibility(View.VISIBLE);
+                else {
+                    Arrays.fill(password, '\0');
+                    if (!passwordsMatch) {
+                        lblWrongPassword.setVisibility(View.VISIBLE);
+                    }
                 }
             });
 
@@ -153,6 +170,16 @@ public class MasterPasswordCreator extends AlertDialog {
             alertDialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_VISIBLE);
             alertDialog.show();
         }
+
+        /**
+         * Copies the typed password without creating a string, which could not be wiped.
+         */
+        private static char[] getPassword(EditText editText) {
+            Editable text = editText.getText();
+            char[] password = new char[text.length()];
+            text.getChars(0, text.length(), password, 0);
+            return password;
+        }
     }
 
     public MasterPasswordCreator(Context context, int themeResId) {
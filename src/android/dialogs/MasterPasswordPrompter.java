@@ -5,6 +5,7 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.os.Build;
 import android.os.CancellationSignal;
+import android.text.Editable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.WindowManager;
@@ -23,6 +24,8 @@ import org.elastos.essentials.plugins.passwordmanager.PasswordManager;
 import org.elastos.essentials.plugins.passwordmanager.UIStyling;
 import org.elastos.essentials.plugins.fingerprint.FingerPrintAuthHelper;
 
+import java.util.Arrays;
+
 import static android.view.inputmethod.EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING;
 
 public class MasterPasswordPrompter extends AlertDialog {
@@ -31,7 +34,10 @@ public class MasterPasswordPrompter extends AlertDialog {
     }
 
     public interface OnNextClickedListener {
-        void onNextClicked(String password, boolean shouldSavePasswordToBiometric);
+        /**
+         * The password array is wiped by the caller once the listener returns.
+         */
+        void onNextClicked(char[] password, boolean shouldSavePasswordToBiometric);
     }
 
     public interface OnErrorListener {
@@ -150,7 +156,8 @@ public class MasterPasswordPrompter extends AlertDialog {
             });
 
             btNext.setOnClickListener(v -> {
-                String password = etPassword.getText().toString();
+                // Password is read as characters, not as a string, so that it can be wiped after use
+                char[] password = getPassword(etPassword);
 
                 // Disable biometric auth for next times if user doesn't want to use that any more
                 if (!swBiometric.isChecked()) {
@@ -165,9 +172,16 @@ public class MasterPasswordPrompter extends AlertDialog {
                         activity.runOnUiThread(() -> {
                             fingerPrintAuthHelper.authenticateAndGetPassword(PasswordManager.MASTER_PASSWORD_BIOMETRIC_KEY, new FingerPrintAuthHelper.AuthenticationCallback() {
                                 @Override
-                                public void onSuccess(String password) {
+                                public void onSuccess(String biometricPassword) {
                                     alertDialog.dismiss();
-                                    onNextClickedListener.onNextClicked(password, shouldSaveToBiometric);
+                                    // The fingerprint plugin returns a string, which can't be wiped (see SecretBuffer)
+                                    char[] password = biometricPassword.toCharArray();
+                                    try {
+                                        onNextClickedListener.onNextClicked(password, shouldSaveToBiometric);
+                                    }
+                                    finally {
+                                        Arrays.fill(password, '\0');
+                                    }
                                 }
 
                                 @Override
@@ -182,11 +196,12 @@ public class MasterPasswordPrompter extends AlertDialog {
                 }
                 else {
                     // Only allow validating the popup if some password is set
-                    if (!password.equals("")) {
+                    if (password.length > 0) {
                         alertDialog.dismiss();
                         onNextClickedListener.onNextClicked(password, shouldSaveToBiometric);
                     }
                 }
+                Arrays.fill(password, '\0');
             });
 
             Boolean biometricAuthEnabled = passwordManager.isBiometricAuthEnabled(did);
@@ -285,6 +300,16 @@ public class MasterPasswordPrompter extends AlertDialog {
                     return false;
             }
         }
+
+        /**
+         * Copies the typed password without creating a string, which could not be wiped.
+         */
+        private static char[] getPassword(EditText editText) {
+            Editable text = editText.getText();
+            char[] password = new char[text.length()];
+            text.getChars(0, text.length(), password, 0);
+            return password;
+        }
     }
 
 
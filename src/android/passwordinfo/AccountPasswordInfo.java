@@ -3,6 +3,8 @@ package org.elastos.essentials.plugins.passwordmanager.passwordinfo;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 public class AccountPasswordInfo extends PasswordInfo {
     String identifier = null;
     String password = null;
@@ -33,6 +35,14 @@ public class AccountPasswordInfo extends PasswordInfo {
         }
     }
 
+    @Override
+    public ArrayList<String> getSearchableFields() {
+        ArrayList<String> fields = super.getSearchableFields();
+        if (identifier != null)
+            fields.add(identifier);
+        return fields;
+    }
+
     @Override
     public void fillWithJsonObject(JSONObject jsonObject) throws Exception {
         // Fill base fields
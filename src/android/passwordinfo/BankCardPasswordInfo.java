@@ -3,6 +3,8 @@ package org.elastos.essentials.plugins.passwordmanager.passwordinfo;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 public class BankCardPasswordInfo extends PasswordInfo {
     private BankCardType cardType = null;
     private String accountOwner = null;
@@ -39,6 +41,14 @@ public class BankCardPasswordInfo extends PasswordInfo {
         }
     }
 
+    @Override
+    public ArrayList<String> getSearchableFields() {
+        ArrayList<String> fields = super.getSearchableFields();
+        if (bankName != null)
+            fields.add(bankName);
+        return fields;
+    }
+
     @Override
     public void fillWithJsonObject(JSONObject jsonObject) throws Exception {
         // Fill base fields
@@ -4,6 +4,8 @@ import org.elastos.essentials.plugins.passwordmanager.PasswordType;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 /**
  * Root type for all password information. This type is abstract and should not be used
  * directly.
@@ -51,6 +53,16 @@ public abstract class PasswordInfo {
         }
     }
 
+    /**
+     * Fields that users can search password info by. Secrets must not be part of them.
+     */
+    public ArrayList<String> getSearchableFields() {
+        ArrayList<String> fields = new ArrayList<>();
+        if (displayName != null)
+            fields.add(displayName);
+        return fields;
+    }
+
     public void fillWithJsonObject(JSONObject jsonObj) throws Exception {
         if (!jsonObj.has("key") || !jsonObj.has("type") || !jsonObj.has("displayName"))
             throw new Exception("Invalid password info, some base fields are missing");
@@ -3,6 +3,8 @@ package org.elastos.essentials.plugins.passwordmanager.passwordinfo;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 public class WifiPasswordInfo extends PasswordInfo {
     String wifiSSID = null;
     String wifiPassword = null;
@@ -31,6 +33,14 @@ public class WifiPasswordInfo extends PasswordInfo {
         }
     }
 
+    @Override
+    public ArrayList<String> getSearchableFields() {
+        ArrayList<String> fields = super.getSearchableFields();
+        if (wifiSSID != null)
+            fields.add(wifiSSID);
+        return fields;
+    }
+
     @Override
     public void fillWithJsonObject(JSONObject jsonObject) throws Exception {
         // Fill base fields
@@ -29,10 +29,33 @@ enum NativeErrorCode {
     NATIVE_ERROR_CODE_UNSPECIFIED = -4,
 }
 
+// Plain password info reads and writes, that can be sent in a batch. Must match the native list.
+const BATCHABLE_ACTIONS = [
+    "setPasswordInfo", "setPasswordInfos", "getPasswordInfo", "getPasswordInfos", "getAppPasswordInfo",
+    "getAllPasswordInfo", "getPasswordInfoPage", "searchPasswordInfo", "deletePasswordInfo",
+    "deletePasswordInfos", "deleteAppPasswordInfo"
+];
+
+type BatchedCall = {
+    action: string,
+    args: any[],
+    success: Function,
+    fail: Function
+}
+
+type BatchedCallResult = {
+    status: "success" | "error",
+    result?: any,
+    error?: any
+}
+
 class PasswordManagerImpl implements PasswordManagerPlugin.PasswordManager {
-    setPasswordInfo(info: PasswordManagerPlugin.PasswordInfo): Promise<PasswordManagerPlugin.BooleanWithReason> {
+    private pendingCalls: BatchedCall[] = [];
+    private changeListeners: ((event: PasswordManagerPlugin.PasswordChangeEvent) => void)[] = [];
+
+    setPasswordInfo(info: PasswordManagerPlugin.PasswordInfo, options?: PasswordManagerPlugin.SetPasswordInfoOptions): Promise<PasswordManagerPlugin.BooleanWithReason> {
         return new Promise((resolve, reject)=>{
-            exec((result: { couldSet: boolean, reason?: string })=>{
+            this.execBatched((result: { couldSet: boolean, reason?: string })=>{
                 resolve({
                     value: result.couldSet,
                     reason: result.reason
@@ -40,13 +63,27 @@ class PasswordManagerImpl implements PasswordManagerPlugin.PasswordManager {
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.setPasswordInfo()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'setPasswordInfo', [info]);
+            }, 'setPasswordInfo', [info, options]);
+        });
+    }
+
+    setPasswordInfos(infos: PasswordManagerPlugin.PasswordInfo[], options?: PasswordManagerPlugin.SetPasswordInfoOptions): Promise<PasswordManagerPlugin.BooleanWithReason> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: { couldSet: boolean, reason?: string })=>{
+                resolve({
+                    value: result.couldSet,
+                    reason: result.reason
+                });
+            }, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.setPasswordInfos()", err);
+                reject(this.nativeToTSException(err));
+            }, 'setPasswordInfos', [infos, options]);
         });
     }
 
     getPasswordInfo(key: string, options?: PasswordManagerPlugin.GetPasswordInfoOptions): Promise<PasswordManagerPlugin.PasswordInfo> {
         return new Promise((resolve, reject)=>{
-            exec((result: { passwordInfo: PasswordManagerPlugin.PasswordInfo })=>{
+            this.execBatched((result: { passwordInfo: PasswordManagerPlugin.PasswordInfo })=>{
                 resolve(result.passwordInfo);
             }, (err)=>{
                 if (err.code == -3) {
@@ -55,24 +92,129 @@ class PasswordManagerImpl implements PasswordManagerPlugin.PasswordManager {
                     console.error("Error while calling PasswordManagerPlugin.getPasswordInfo()", err);
                 }
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'getPasswordInfo', [key, options]);
+            }, 'getPasswordInfo', [key, options]);
+        });
+    }
+
+    getPasswordInfos(keys: string[], options?: PasswordManagerPlugin.GetPasswordInfoOptions): Promise<PasswordManagerPlugin.PasswordInfo[]> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: { passwordInfo: PasswordManagerPlugin.PasswordInfo[] })=>{
+                resolve(result.passwordInfo);
+            }, (err)=>{
+                if (err.code == -3) {
+                    console.warn("Canceled while calling PasswordManagerPlugin.getPasswordInfos()", err);
+                } else {
+                    console.error("Error while calling PasswordManagerPlugin.getPasswordInfos()", err);
+                }
+                reject(this.nativeToTSException(err));
+            }, 'getPasswordInfos', [keys, options]);
         });
     }
 
-    getAllPasswordInfo(): Promise<PasswordManagerPlugin.PasswordInfo[]> {
+    getAllPasswordInfo(options?: PasswordManagerPlugin.GetAllPasswordInfoOptions): Promise<PasswordManagerPlugin.PasswordInfo[]> {
         return new Promise((resolve, reject)=>{
-            exec((result: { allPasswordInfo: PasswordManagerPlugin.PasswordInfo[] })=>{
+            // Other platforms would ignore the option and return secret fields
+            if (options && options.metadataOnly && cordova.platformId !== "android") {
+                reject(new InvalidParameterExceptionImpl("The metadataOnly option is only supported on Android"));
+                return;
+            }
+
+            this.execBatched((result: { allPasswordInfo: PasswordManagerPlugin.PasswordInfo[] })=>{
                 resolve(result.allPasswordInfo);
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.getAllPasswordInfo()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'getAllPasswordInfo', []);
+            }, 'getAllPasswordInfo', [options]);
+        });
+    }
+
+    deletePasswordInfos(keys: string[]): Promise<PasswordManagerPlugin.BooleanWithReason> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: { couldDelete: boolean, reason?: string })=>{
+                resolve({
+                    value: result.couldDelete,
+                    reason: result.reason
+                });
+            }, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.deletePasswordInfos()", err);
+                reject(this.nativeToTSException(err));
+            }, 'deletePasswordInfos', [keys]);
+        });
+    }
+
+    getPasswordInfoPage(options?: PasswordManagerPlugin.GetPasswordInfoPageOptions): Promise<PasswordManagerPlugin.PasswordInfoPage> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: { passwordInfo: PasswordManagerPlugin.PasswordInfo[], nextCursor?: string })=>{
+                resolve({
+                    passwordInfo: result.passwordInfo,
+                    nextCursor: result.nextCursor
+                });
+            }, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.getPasswordInfoPage()", err);
+                reject(this.nativeToTSException(err));
+            }, 'getPasswordInfoPage', [options]);
+        });
+    }
+
+    streamAllPasswordInfo(options?: PasswordManagerPlugin.StreamAllPasswordInfoOptions): AsyncIterableIterator<PasswordManagerPlugin.PasswordInfo[]> {
+        // Each chunk is read as a page only when the consumer asks for it, with the cursor of the previous one
+        let pageOptions: PasswordManagerPlugin.GetPasswordInfoPageOptions = {
+            pageSize: options ? options.pageSize : undefined,
+            type: options ? options.type : undefined,
+            appID: options ? options.appID : undefined,
+            metadataOnly: options ? options.metadataOnly : undefined
+        };
+        let finished = false;
+        // Concurrent calls to next() are served one after the other
+        let lastChunk: Promise<any> = Promise.resolve();
+
+        let readNextChunk = (): Promise<IteratorResult<PasswordManagerPlugin.PasswordInfo[]>> => {
+            if (finished)
+                return Promise.resolve({ value: undefined, done: true });
+
+            return this.getPasswordInfoPage(pageOptions).then((page)=>{
+                if (page.nextCursor)
+                    pageOptions.cursor = page.nextCursor;
+                else
+                    finished = true;
+
+                if (page.passwordInfo.length == 0)
+                    return readNextChunk();
+                return { value: page.passwordInfo, done: false };
+            });
+        };
+
+        let iterator: AsyncIterableIterator<PasswordManagerPlugin.PasswordInfo[]> = {
+            next: ()=>{
+                let chunk = lastChunk.then(readNextChunk);
+                // The stream ends with its first error
+                lastChunk = chunk.catch(()=>{ finished = true; });
+                return chunk;
+            },
+            return: (value?: any)=>{
+                // Stops reading: "break" in "for await", or the consumer gave up
+                finished = true;
+                return Promise.resolve({ value: value, done: true });
+            },
+            [Symbol.asyncIterator]: ()=>iterator
+        };
+        return iterator;
+    }
+
+    searchPasswordInfo(query: string, options?: PasswordManagerPlugin.SearchPasswordInfoOptions): Promise<PasswordManagerPlugin.PasswordInfo[]> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: { matchingPasswordInfo: PasswordManagerPlugin.PasswordInfo[] })=>{
+                resolve(result.matchingPasswordInfo);
+            }, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.searchPasswordInfo()", err);
+                reject(this.nativeToTSException(err));
+            }, 'searchPasswordInfo', [query, options]);
         });
     }
 
     deletePasswordInfo(key: string): Promise<PasswordManagerPlugin.BooleanWithReason> {
         return new Promise((resolve, reject)=>{
-            exec((result: { couldDelete: boolean, reason?: string })=>{
+            this.execBatched((result: { couldDelete: boolean, reason?: string })=>{
                 resolve({
                     value: result.couldDelete,
                     reason: result.reason
@@ -80,24 +222,24 @@ class PasswordManagerImpl implements PasswordManagerPlugin.PasswordManager {
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.deletePasswordInfo()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'deletePasswordInfo', [key]);
+            }, 'deletePasswordInfo', [key]);
         });
     }
 
     generateRandomPassword(options?: PasswordManagerPlugin.PasswordCreationOptions): Promise<string> {
         return new Promise((resolve, reject)=>{
-            exec((result: { generatedPassword: string })=>{
+            this.execBatched((result: { generatedPassword: string })=>{
                 resolve(result.generatedPassword);
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.generateRandomPassword()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'generateRandomPassword', [options]);
+            }, 'generateRandomPassword', [options]);
         });
     }
 
     changeMasterPassword(): Promise<PasswordManagerPlugin.BooleanWithReason> {
         return new Promise((resolve, reject)=>{
-            exec((result: { couldChange: boolean, reason?: string })=>{
+            this.execBatched((result: { couldChange: boolean, reason?: string })=>{
                 resolve({
                     value: result.couldChange,
                     reason: result.reason
@@ -105,46 +247,61 @@ class PasswordManagerImpl implements PasswordManagerPlugin.PasswordManager {
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.changeMasterPassword()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'changeMasterPassword', []);
+            }, 'changeMasterPassword', []);
         });
     }
 
     lockMasterPassword(): Promise<void> {
         return new Promise((resolve, reject)=>{
-            exec(()=>{
+            this.execBatched(()=>{
                 resolve();
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.lockMasterPassword()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'lockMasterPassword', []);
+            }, 'lockMasterPassword', []);
         });
     }
 
     deleteAll(): Promise<void> {
         return new Promise((resolve, reject)=>{
-            exec(()=>{
+            this.execBatched(()=>{
                 resolve();
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.deleteAll()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'deleteAll', []);
+            }, 'deleteAll', []);
         });
     }
 
     setUnlockMode(mode: PasswordManagerPlugin.PasswordUnlockMode): Promise<void> {
         return new Promise((resolve, reject)=>{
-            exec(()=>{
+            this.execBatched(()=>{
                 resolve();
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.setUnlockMode()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'setUnlockMode', [mode]);
+            }, 'setUnlockMode', [mode]);
+        });
+    }
+
+    getAppPasswordInfo(targetAppId: string, key: string, options?: PasswordManagerPlugin.GetPasswordInfoOptions): Promise<PasswordManagerPlugin.PasswordInfo> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: { passwordInfo: PasswordManagerPlugin.PasswordInfo })=>{
+                resolve(result.passwordInfo);
+            }, (err)=>{
+                if (err.code == -3) {
+                    console.warn("Canceled while calling PasswordManagerPlugin.getAppPasswordInfo()", err);
+                } else {
+                    console.error("Error while calling PasswordManagerPlugin.getAppPasswordInfo()", err);
+                }
+                reject(this.nativeToTSException(err));
+            }, 'getAppPasswordInfo', [targetAppId, key, options]);
         });
     }
 
     deleteAppPasswordInfo(targetAppId: string, key: string): Promise<PasswordManagerPlugin.BooleanWithReason> {
         return new Promise((resolve, reject)=>{
-            exec((result: { couldDelete: boolean, reason?: string })=>{
+            this.execBatched((result: { couldDelete: boolean, reason?: string })=>{
                 resolve({
                     value: result.couldDelete,
                     reason: result.reason
@@ -152,32 +309,120 @@ class PasswordManagerImpl implements PasswordManagerPlugin.PasswordManager {
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.deleteAppPasswordInfo()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'deleteAppPasswordInfo', [targetAppId, key]);
+            }, 'deleteAppPasswordInfo', [targetAppId, key]);
+        });
+    }
+
+    addChangeListener(listener: (event: PasswordManagerPlugin.PasswordChangeEvent) => void) {
+        this.changeListeners.push(listener);
+
+        // A single native subscription is shared by all listeners
+        if (this.changeListeners.length == 1) {
+            exec((event: PasswordManagerPlugin.PasswordChangeEvent)=>{
+                // The subscription ends with an empty result
+                if (!event || !event.type)
+                    return;
+                this.changeListeners.forEach((changeListener)=>changeListener(event));
+            }, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.subscribeToChanges()", err);
+            }, 'PasswordManagerPlugin', 'subscribeToChanges', []);
+        }
+    }
+
+    removeChangeListener(listener: (event: PasswordManagerPlugin.PasswordChangeEvent) => void) {
+        let index = this.changeListeners.indexOf(listener);
+        if (index < 0)
+            return;
+
+        this.changeListeners.splice(index, 1);
+        if (this.changeListeners.length == 0) {
+            exec(()=>{}, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.unsubscribeFromChanges()", err);
+            }, 'PasswordManagerPlugin', 'unsubscribeFromChanges', []);
+        }
+    }
+
+    getMetrics(): Promise<PasswordManagerPlugin.PasswordManagerMetrics> {
+        return new Promise((resolve, reject)=>{
+            this.execBatched((result: PasswordManagerPlugin.PasswordManagerMetrics)=>{
+                resolve(result);
+            }, (err)=>{
+                console.error("Error while calling PasswordManagerPlugin.getMetrics()", err);
+                reject(this.nativeToTSException(err));
+            }, 'getMetrics', []);
         });
     }
 
     setDarkMode(useDarkMode: boolean): Promise<void> {
         return new Promise((resolve, reject)=>{
-            exec(()=>{
+            this.execBatched(()=>{
                 resolve();
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.setDarkMode()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'setDarkMode', [useDarkMode]);
+            }, 'setDarkMode', [useDarkMode]);
         });
     }
 
     setLanguage(language: string): Promise<void> {
         return new Promise((resolve, reject)=>{
-            exec(()=>{
+            this.execBatched(()=>{
                 resolve();
             }, (err)=>{
                 console.error("Error while calling PasswordManagerPlugin.setLanguage()", err);
                 reject(this.nativeToTSException(err));
-            }, 'PasswordManagerPlugin', 'setLanguage', [language]);
+            }, 'setLanguage', [language]);
         });
     }
 
+    /**
+     * Same as exec(), but plain password info reads and writes made during the same microtask are sent
+     * together to the native side, in a single "batch" call, to save bridge round trips. They still run one
+     * after the other, in call order, and each call gets its own result: a call cancelled at the master
+     * password prompt doesn't cancel the following ones, which prompt again.
+     */
+    private execBatched(success: Function, fail: Function, action: string, args: any[]) {
+        // The batch action is only available on android
+        if (cordova.platformId !== "android" || BATCHABLE_ACTIONS.indexOf(action) < 0) {
+            // Sent after the calls made before it
+            if (this.pendingCalls.length > 0)
+                this.flushBatchedCalls();
+
+            exec(success, fail, 'PasswordManagerPlugin', action, args);
+            return;
+        }
+
+        this.pendingCalls.push({ action: action, args: args, success: success, fail: fail });
+        if (this.pendingCalls.length == 1) {
+            Promise.resolve().then(() => this.flushBatchedCalls());
+        }
+    }
+
+    private flushBatchedCalls() {
+        let calls = this.pendingCalls;
+        this.pendingCalls = [];
+
+        if (calls.length == 0)
+            return;
+
+        if (calls.length == 1) {
+            exec(calls[0].success, calls[0].fail, 'PasswordManagerPlugin', calls[0].action, calls[0].args);
+            return;
+        }
+
+        exec((result: { results: BatchedCallResult[] })=>{
+            result.results.forEach((callResult, i)=>{
+                if (callResult.status == "success")
+                    calls[i].success(callResult.result);
+                else
+                    calls[i].fail(callResult.error);
+            });
+        }, (err)=>{
+            console.error("Error while calling PasswordManagerPlugin.batch()", err);
+            calls.forEach((call)=>call.fail(err));
+        }, 'PasswordManagerPlugin', 'batch', [calls.map((call)=>({ action: call.action, args: call.args }))]);
+    }
+
     /**
      * Tries to convert a native error into a better TS error type for app convenience.
      */
@@ -190,11 +190,36 @@ declare namespace PasswordManagerPlugin {
         /**
          * Users have to provide their master password every time an application requests a password.
          * This provides higher security in case the device is stolen, but this is less convenient
-         * for users.
+         * for users. The database is locked again by the next request, not right after each request.
          */
         UNLOCK_EVERY_TIME = 1
     }
 
+    /**
+     * Defines when a password info change is considered as done.
+     */
+    const enum PasswordSaveDurability {
+        /**
+         * The change is written and synced to the device storage before the operation completes.
+         */
+        SAVED_TO_DISK = 0,
+
+        /**
+         * The operation completes as soon as the change is applied to the unlocked database. The change is
+         * written to the device storage shortly after, together with other changes made in the meantime, and
+         * always before the database gets locked.
+         */
+        APPLIED_IN_MEMORY = 1
+    }
+
+    type SetPasswordInfoOptions = {
+        /**
+         * When the operation is considered as done. Using APPLIED_IN_MEMORY is faster when saving many password
+         * info in a row. Default: SAVED_TO_DISK.
+         */
+        durability?: PasswordSaveDurability
+    }
+
     type GetPasswordInfoOptions = {
         /**
          * If true, the master password is asked (popup) in case the database is locked. If false,
@@ -211,6 +236,148 @@ declare namespace PasswordManagerPlugin {
         forceMasterPasswordPrompt?: boolean
     }
 
+    type GetPasswordInfoPageOptions = {
+        /**
+         * Cursor returned with the previous page. Default: first page.
+         */
+        cursor?: string
+
+        /**
+         * Maximum number of password info in the page. Default: 30.
+         */
+        pageSize?: number
+
+        /**
+         * Only returns password info of this type. Default: all types.
+         */
+        type?: PasswordType
+
+        /**
+         * Only returns password info saved by this application. Default: all applications.
+         */
+        appID?: string
+
+        /**
+         * Only returns the key, type, display name and app ID of password info, without any secret field.
+         * Secrets are then fetched with getAppPasswordInfo(). Default: false. Android only: rejected with an
+         * InvalidParameterException on other platforms.
+         */
+        metadataOnly?: boolean
+    }
+
+    type GetAllPasswordInfoOptions = {
+        /**
+         * Only returns the key, type, display name and app ID of password info, without any secret field.
+         * Secrets are then fetched with getAppPasswordInfo(). Default: false. Android only: rejected with an
+         * InvalidParameterException on other platforms.
+         */
+        metadataOnly?: boolean
+    }
+
+    type PasswordInfoPage = {
+        passwordInfo: PasswordInfo[]
+
+        /**
+         * Opaque cursor to pass to getPasswordInfoPage() to get the next page. Not set if this is the last page.
+         */
+        nextCursor?: string
+    }
+
+    type StreamAllPasswordInfoOptions = {
+        /**
+         * Maximum number of password info in each chunk. Default: 30.
+         */
+        pageSize?: number
+
+        /**
+         * Only returns password info of this type. Default: all types.
+         */
+        type?: PasswordType
+
+        /**
+         * Only returns password info saved by this application. Default: all applications.
+         */
+        appID?: string
+
+        /**
+         * Only returns the key, type, display name and app ID of password info, without any secret field.
+         * Default: false.
+         */
+        metadataOnly?: boolean
+    }
+
+    type SearchPasswordInfoOptions = {
+        /**
+         * Only returns password info of this type. Default: all types.
+         */
+        type?: PasswordType
+
+        /**
+         * Maximum number of returned password info. Default: no limit.
+         */
+        maxResults?: number
+    }
+
+    /**
+     * Change of the password database, sent to change listeners. Events never contain password info fields.
+     */
+    type PasswordChangeEvent = {
+        /**
+         * - subscribed: first event received by listeners, with the current version.
+         * - set / delete: a password info was saved or deleted.
+         * - lock / unlock: the database was locked or unlocked. Anything cached must be dropped.
+         *
+         * The database is locked by lockMasterPassword(), when the unlock mode becomes UNLOCK_EVERY_TIME, and
+         * when its session expires, one hour after it was unlocked. In UNLOCK_EVERY_TIME mode, the database
+         * stays unlocked after a call until the next call, which locks it before prompting for the master
+         * password again: the lock event is sent at that time. A database whose changes can't be saved stays
+         * unlocked until they are.
+         */
+        type: "subscribed" | "set" | "delete" | "lock" | "unlock";
+
+        /**
+         * Increased by one for each event, so that missed events can be detected.
+         */
+        version: number;
+
+        /**
+         * Application and key of the changed password info, for set and delete events only.
+         */
+        appID?: string;
+        key?: string;
+    }
+
+    /**
+     * Durations recorded for an action or a step, in microseconds. Percentiles are precise to 1/8 of their value.
+     */
+    type LatencyHistogram = {
+        count: number;
+        meanUs?: number;
+        p50Us?: number;
+        p90Us?: number;
+        p99Us?: number;
+        maxUs?: number;
+    }
+
+    type PasswordManagerMetrics = {
+        /**
+         * Event counts: unlocks, prompts, saves, bytesWritten, ciphersCreated, secretKeyFactoriesCreated,
+         * secureRandomsCreated.
+         */
+        counters: { [name: string]: number };
+
+        /**
+         * Durations of the slow steps: kdf, aesDecrypt, aesEncrypt, legacyRead, databaseParse, databaseSave,
+         * changesSave, masterPasswordPrompt.
+         */
+        phases: { [name: string]: LatencyHistogram };
+
+        /**
+         * Durations of each plugin action, from the native call to the result.
+         */
+        actions: { [name: string]: LatencyHistogram };
+    }
+
     /** The provided password is invalid */
     interface InvalidPasswordException extends Error {}
 
@@ -234,7 +401,16 @@ declare namespace PasswordManagerPlugin {
          *
          * @returns True if the password info was saved, false otherwise.
          */
-        setPasswordInfo(info: PasswordInfo): Promise<BooleanWithReason>;
+        setPasswordInfo(info: PasswordInfo, options?: SetPasswordInfoOptions): Promise<BooleanWithReason>;
+
+        /**
+         * Saves or updates several password information at once. They are all saved together, with a single
+         * write: either all of them are saved, or none. Much faster than calling setPasswordInfo() for each of
+         * them, for instance while importing passwords. Android only.
+         *
+         * @returns True if the password info were saved, false otherwise.
+         */
+        setPasswordInfos(infos: PasswordInfo[], options?: SetPasswordInfoOptions): Promise<BooleanWithReason>;
 
         /**
          * Using a key identifier, returns a previously saved password info.
@@ -245,6 +421,15 @@ declare namespace PasswordManagerPlugin {
          */
         getPasswordInfo(key: string, options?: GetPasswordInfoOptions): Promise<PasswordInfo>;
 
+        /**
+         * Using key identifiers, returns several previously saved password info at once. Android only.
+         *
+         * @param keys Unique keys identifying the password info to retrieve.
+         *
+         * @returns The password info, in the same order as the keys, with null for keys that were not found.
+         */
+        getPasswordInfos(keys: string[], options?: GetPasswordInfoOptions): Promise<PasswordInfo[]>;
+
         /**
          * Deletes an existing password information from the secure database.
          *
@@ -254,6 +439,16 @@ declare namespace PasswordManagerPlugin {
          */
         deletePasswordInfo(key: string): Promise<BooleanWithReason>;
 
+        /**
+         * Deletes several existing password information at once, with a single write: either all of them are
+         * deleted, or none. Android only.
+         *
+         * @param keys Unique identifiers for the password info to delete.
+         *
+         * @returns True if something could be deleted, false otherwise.
+         */
+        deletePasswordInfos(keys: string[]): Promise<BooleanWithReason>;
+
         /**
          * Convenience method to generate a random password based on given criteria (options).
          * Used by applications to quickly generate new user passwords.
@@ -276,6 +471,8 @@ declare namespace PasswordManagerPlugin {
          * If the master password has ben unlocked earlier, all passwords are accessible for a while.
          * This API re-locks the passwords database and further requests from applications to this password
          * manager will require user to provide his master password again.
+         *
+         * Fails, and the database stays unlocked, if its changes can't be saved.
          */
         lockMasterPassword();
 
@@ -300,9 +497,62 @@ declare namespace PasswordManagerPlugin {
         /**
          * Returns the whole list of password information contained in the password database.
          *
+         * With the metadataOnly option, password info are not decrypted, and only their key, type, display name
+         * and app ID are returned. This option is Android only.
+         *
          * @returns The list of existing password information.
          */
-        getAllPasswordInfo(): Promise<PasswordInfo[]>;
+        getAllPasswordInfo(options?: GetAllPasswordInfoOptions): Promise<PasswordInfo[]>;
+
+        /**
+         * Returns one page of the password information contained in the password database, optionally filtered
+         * by type and application. Unlike getAllPasswordInfo(), only the requested password info are decrypted
+         * and transferred, so that lists can be displayed without waiting for the whole database.
+         *
+         * Password info added or deleted between two calls may be missing from, or returned twice in, the
+         * following pages.
+         *
+         * Android only.
+         *
+         * @returns The page of password information, and the cursor to get the next page.
+         */
+        getPasswordInfoPage(options?: GetPasswordInfoPageOptions): Promise<PasswordInfoPage>;
+
+        /**
+         * Returns the whole list of password information contained in the password database, in chunks read
+         * with getPasswordInfoPage() as they are consumed, so that large lists can be displayed progressively.
+         * Unlike getAllPasswordInfo(), the whole list is never held in a single message, and the next chunk is
+         * only read and decrypted when it's requested. Stopping the iteration ("break") stops reading.
+         *
+         * Only the password manager application is allowed to call this API. Android only.
+         *
+         * @returns Chunks of password information, to be used with "for await".
+         */
+        streamAllPasswordInfo(options?: StreamAllPasswordInfoOptions): AsyncIterableIterator<PasswordInfo[]>;
+
+        /**
+         * Returns the password information whose display name, account identifier, wifi SSID or bank name
+         * contain all the words of the query, sorted by display name. Words of less than 3 characters only match
+         * the beginning of words. Only matching password info are returned. The first search decrypts the whole
+         * database to build a search index, which is then kept up to date while the database is unlocked.
+         *
+         * Android only.
+         *
+         * @param query Words to search, separated by spaces or punctuation.
+         *
+         * @returns The matching password information.
+         */
+        searchPasswordInfo(query: string, options?: SearchPasswordInfoOptions): Promise<PasswordInfo[]>;
+
+        /**
+         * Retrieves the complete password information saved by a given application, for instance after listing
+         * password info with the metadataOnly option. Android only.
+         *
+         * @param key Unique key identifying the password info to retrieve.
+         *
+         * @returns The password info, or null if nothing was found.
+         */
+        getAppPasswordInfo(targetAppId: string, key: string, options?: GetPasswordInfoOptions): Promise<PasswordInfo>;
 
         /**
          * Deletes an existing password information from the secure database, for a given application.
@@ -313,6 +563,20 @@ declare namespace PasswordManagerPlugin {
          */
         deleteAppPasswordInfo(targetAppId: string, key: string): Promise<BooleanWithReason>;
 
+        /**
+         * Registers a listener called when password info are saved or deleted, and when the database is locked
+         * or unlocked, for instance to keep a cache of password info up to date. Android only.
+         */
+        addChangeListener(listener: (event: PasswordChangeEvent) => void): void;
+
+        removeChangeListener(listener: (event: PasswordChangeEvent) => void): void;
+
+        /**
+         * Returns the durations of the plugin actions and of the slow steps of the password manager, and event
+         * counters, since the application started. Android only.
+         */
+        getMetrics(): Promise<PasswordManagerMetrics>;
+
         /**
          * Set the theme mode.
          * @param useDarkMode True if use the dark mode theme, false use the light mode theme.